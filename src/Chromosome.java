@@ -14,6 +14,11 @@ class Chromosome implements Comparable<Chromosome> {
    */
   protected double cost;
 
+  /**
+   * The TourHash of cityList, kept up to date as the cities are changed.
+   */
+  protected long hash;
+
   /**
    * @param cities The order that this chromosome would
    * visit the cities.
@@ -32,11 +37,21 @@ class Chromosome implements Comparable<Chromosome> {
       Operators.swap(cityList, i - 1, rand.nextInt(i));
     }
 
+    hash = TourHash.of(cityList);
     calculateCost(cities);
   }
 
   Chromosome(int[] cityList) {
+    this(cityList, TourHash.of(cityList));
+  }
+
+  /**
+   * @param cityList The order that this chromosome would visit the cities.
+   * @param hash The TourHash of cityList.
+   */
+  Chromosome(int[] cityList, long hash) {
     this.cityList = cityList;
+    this.hash = hash;
   }
 
   /**
@@ -59,6 +74,14 @@ class Chromosome implements Comparable<Chromosome> {
     return cost;
   }
 
+  /**
+   * Get the hash of the order of cities, which is the same for tours with the
+   * same edges.
+   */
+  long getHash() {
+    return hash;
+  }
+
   /**
    * @param i The city you want.
    * @return The ith city.
@@ -77,6 +100,7 @@ class Chromosome implements Comparable<Chromosome> {
     for (int i = 0; i < cityList.length; i++) {
       cityList[i] = list[i];
     }
+    hash = TourHash.of(cityList);
   }
 
   /** Get the size of the genome (size of city list). */
@@ -91,7 +115,9 @@ class Chromosome implements Comparable<Chromosome> {
    * @param value The city number to place into the index.
    */
   void setCity(int index, int value) {
+    hash ^= TourHash.segment(cityList, index - 1, index + 1);
     cityList[index] = value;
+    hash ^= TourHash.segment(cityList, index - 1, index + 1);
   }
 
   public int[] getCityList() {
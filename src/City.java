@@ -42,6 +42,24 @@ class City {
     return ypos;
   }
 
+  /**
+   * Returns the city's x position in the units used by proximity().
+   *
+   * @return The scaled x position.
+   */
+  double getScaledX() {
+    return WINDOW_WIDTH * xpos;
+  }
+
+  /**
+   * Returns the city's y position in the units used by proximity().
+   *
+   * @return The scaled y position.
+   */
+  double getScaledY() {
+    return WINDOW_HEIGHT * ypos;
+  }
+
   public int getProjectedX(int width) {
     return (int)(xpos * width);
   }
@@ -0,0 +1,322 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Solves instances too large for one simulation by divide and conquer:
+ *
+ *  1. The cities are split into clusters of at most CLUSTER_SIZE by cutting
+ *     the plane at the median along its longer side, over and over.
+ *  2. Each cluster is solved by its own simulation, in parallel, starting
+ *     from nearest-neighbour tours, and the result polished with 2-opt.
+ *  3. A simulation over the clusters' centroids decides their order.
+ *  4. The clusters' paths are closed into cycles and joined in that order,
+ *     each opened where it makes its joins cheapest, and 2-opt repairs the
+ *     tour around each join.
+ */
+class ClusterSolver {
+
+  /** Most cities in a cluster. */
+  static final int CLUSTER_SIZE = 200;
+
+  /** Positions either side of a join that 2-opt may change. */
+  static final int JOIN_WINDOW = 50;
+
+  private static final int POPULATION_SIZE = 100;
+  private static final int PARENT_POOL_SIZE = 50;
+
+  /** Share of the time limit given to solving the clusters. */
+  private static final double CLUSTER_TIME = 0.8;
+
+  private final Instance instance;
+  private final int threads;
+
+  /**
+   * @throws IllegalArgumentException If the instance has TravelCosts or
+   * RouteConstraints, as the clusters are solved as instances of their own.
+   */
+  ClusterSolver(Instance instance, int threads) {
+    if (instance.getCosts() != null || instance.getConstraints() != null) {
+      throw new IllegalArgumentException("Can't split an instance with travel costs or "
+          + "constraints");
+    }
+    this.instance = instance;
+    this.threads = threads;
+  }
+
+  /** Solve the instance, taking about timeLimitMillis. */
+  TourSnapshot solve(long timeLimitMillis) throws InterruptedException {
+    long start = System.nanoTime();
+    long limit = TimeUnit.MILLISECONDS.toNanos(timeLimitMillis);
+    List<int[]> clusters = partition();
+
+    // Solve the clusters
+    int[][] paths = new int[clusters.size()][];
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      long clusterDeadline = start + (long) (limit * CLUSTER_TIME);
+      List<Future<int[]>> futures = new ArrayList<Future<int[]>>();
+      for (int[] cluster : clusters) {
+        futures.add(executor.submit(new ClusterTask(cluster, clusters.size(), clusterDeadline,
+            start)));
+      }
+      for (int c = 0; c < paths.length; c++) {
+        paths[c] = futures.get(c).get();
+      }
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+
+    int[] order = orderClusters(clusters, start + limit);
+    int[] tour = new int[instance.size()];
+    int[] joins = stitch(paths, order, tour);
+    for (int join : joins) {
+      twoOpt(instance, tour, Math.max(0, join - JOIN_WINDOW),
+          Math.min(tour.length - 1, join + JOIN_WINDOW));
+    }
+    return new TourSnapshot(instance.getCities(), tour, instance.getEvaluator().cost(tour), 0);
+  }
+
+  /**
+   * Split the cities into clusters by recursively cutting at the median of
+   * the longer side.
+   */
+  List<int[]> partition() {
+    int len = instance.size();
+    Integer[] cities = new Integer[len];
+    for (int i = 0; i < len; i++) {
+      cities[i] = i;
+    }
+    List<int[]> clusters = new ArrayList<int[]>();
+    split(cities, 0, len, clusters);
+    return clusters;
+  }
+
+  private void split(Integer[] cities, int from, int to, List<int[]> clusters) {
+    final FitnessEvaluator evaluator = instance.getEvaluator();
+    if (to - from <= CLUSTER_SIZE) {
+      int[] cluster = new int[to - from];
+      for (int i = from; i < to; i++) {
+        cluster[i - from] = cities[i];
+      }
+      clusters.add(cluster);
+      return;
+    }
+    double minX = Double.POSITIVE_INFINITY;
+    double maxX = Double.NEGATIVE_INFINITY;
+    double minY = Double.POSITIVE_INFINITY;
+    double maxY = Double.NEGATIVE_INFINITY;
+    for (int i = from; i < to; i++) {
+      minX = Math.min(minX, evaluator.x(cities[i]));
+      maxX = Math.max(maxX, evaluator.x(cities[i]));
+      minY = Math.min(minY, evaluator.y(cities[i]));
+      maxY = Math.max(maxY, evaluator.y(cities[i]));
+    }
+    final boolean byX = maxX - minX >= maxY - minY;
+    Arrays.sort(cities, from, to, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return byX ? Double.compare(evaluator.x(a), evaluator.x(b))
+            : Double.compare(evaluator.y(a), evaluator.y(b));
+      }
+    });
+    int middle = (from + to) >>> 1;
+    split(cities, from, middle, clusters);
+    split(cities, middle, to, clusters);
+  }
+
+  /** Solves one cluster, giving a path through it in instance indices. */
+  private class ClusterTask implements Callable<int[]> {
+    private final int[] cluster;
+    private final int clusterCount;
+    private final long deadline;
+    private final long start;
+
+    ClusterTask(int[] cluster, int clusterCount, long deadline, long start) {
+      this.cluster = cluster;
+      this.clusterCount = clusterCount;
+      this.deadline = deadline;
+      this.start = start;
+    }
+
+    @Override
+    public int[] call() {
+      int len = cluster.length;
+      if (len < 4) {
+        return cluster.clone();
+      }
+      City[] all = instance.getCities();
+      City[] cities = new City[len];
+      for (int i = 0; i < len; i++) {
+        cities[i] = all[cluster[i]];
+      }
+      Instance sub = new Instance(cities);
+
+      // Start from a few nearest-neighbour tours
+      PopulationRestart seeding = new PopulationRestart(sub, new Random(len));
+      int[][] seeds = new int[Math.min(4, len)][len];
+      for (int i = 0; i < seeds.length; i++) {
+        seeding.nearestNeighbourTour(i * len / seeds.length, seeds[i]);
+      }
+
+      // An even share of the time, but never past the deadline
+      long now = System.nanoTime();
+      long share = (deadline - start) * threads / clusterCount;
+      Simulation simulation = new Simulation(sub, POPULATION_SIZE, PARENT_POOL_SIZE);
+      simulation.setInitialTours(seeds);
+      simulation.setBudget(Integer.MAX_VALUE, Math.min(deadline, now + share));
+      simulation.simulate();
+
+      // The simulation's tour can usually still be improved by 2-opt
+      int[] local = simulation.getBestTour().getTour();
+      twoOpt(sub, local, 0, len - 1);
+      int[] path = new int[len];
+      for (int i = 0; i < len; i++) {
+        path[i] = cluster[local[i]];
+      }
+      return path;
+    }
+  }
+
+  /** Find an order to visit the clusters by solving a tour of their centroids. */
+  private int[] orderClusters(List<int[]> clusters, long deadline) {
+    int count = clusters.size();
+    int[] order = new int[count];
+    for (int c = 0; c < count; c++) {
+      order[c] = c;
+    }
+    if (count < 4) {
+      return order;
+    }
+    City[] all = instance.getCities();
+    City[] centroids = new City[count];
+    for (int c = 0; c < count; c++) {
+      double x = 0;
+      double y = 0;
+      for (int city : clusters.get(c)) {
+        x += all[city].getx();
+        y += all[city].gety();
+      }
+      centroids[c] = new City(x / clusters.get(c).length, y / clusters.get(c).length);
+    }
+    Instance centres = new Instance(centroids);
+    int[] seed = new int[count];
+    new PopulationRestart(centres, new Random(count)).nearestNeighbourTour(0, seed);
+    Simulation simulation = new Simulation(centres, POPULATION_SIZE, PARENT_POOL_SIZE);
+    simulation.setInitialTours(new int[][] { seed });
+    simulation.setBudget(Integer.MAX_VALUE, deadline);
+    simulation.simulate();
+    return simulation.getBestTour().getTour();
+  }
+
+  /**
+   * Join the clusters' paths in order. Each path is treated as a cycle and
+   * opened wherever is cheapest: it is entered near where the previous one
+   * was left, and left near the next cluster's centroid, dropping the cycle
+   * edge between the two.
+   *
+   * @return The positions in tour where each join's second path starts.
+   */
+  private int[] stitch(int[][] paths, int[] order, int[] tour) {
+    FitnessEvaluator evaluator = instance.getEvaluator();
+    int count = order.length;
+    double[] centreX = new double[count];
+    double[] centreY = new double[count];
+    for (int c = 0; c < count; c++) {
+      for (int city : paths[c]) {
+        centreX[c] += evaluator.x(city);
+        centreY[c] += evaluator.y(city);
+      }
+      centreX[c] /= paths[c].length;
+      centreY[c] /= paths[c].length;
+    }
+
+    int[] joins = new int[count - 1];
+    int pos = 0;
+    int exit = -1;
+    for (int c = 0; c < count; c++) {
+      int[] path = paths[order[c]];
+      int len = path.length;
+      boolean last = c == count - 1;
+      int next = last ? -1 : order[c + 1];
+
+      // Choose the entry position and direction
+      int bestEntry = 0;
+      int bestDirection = 1;
+      double bestCost = Double.POSITIVE_INFINITY;
+      for (int i = 0; i < len; i++) {
+        double in = exit == -1 ? 0 : instance.distance(exit, path[i]);
+        for (int direction = -1; direction <= 1; direction += 2) {
+          // Going this way round, the path ends next to where it started
+          int end = path[(i - direction + len) % len];
+          double out = 0;
+          if (!last) {
+            double dx = evaluator.x(end) - centreX[next];
+            double dy = evaluator.y(end) - centreY[next];
+            out = Math.sqrt(dx * dx + dy * dy);
+          }
+          double cost = in + out - (len > 1 ? instance.distance(path[i], end) : 0);
+          if (cost < bestCost) {
+            bestCost = cost;
+            bestEntry = i;
+            bestDirection = direction;
+          }
+        }
+      }
+
+      if (c > 0) {
+        joins[c - 1] = pos;
+      }
+      for (int k = 0; k < len; k++) {
+        tour[pos++] = path[((bestEntry + bestDirection * k) % len + len) % len];
+      }
+      exit = tour[pos - 1];
+    }
+    return joins;
+  }
+
+  /**
+   * Improve tour[from..to] with 2-opt until no move helps. Only cities in the
+   * window are moved.
+   */
+  private static void twoOpt(Instance instance, int[] tour, int from, int to) {
+    int len = tour.length;
+    boolean improved = true;
+    while (improved) {
+      improved = false;
+      for (int i = from - 1; i < to; i++) {
+        // Reverse tour[i + 1..k], replacing edges (i, i + 1) and (k, k + 1).
+        // Tours are open, so with i = -1 a prefix is reversed and only the
+        // edge (k, k + 1) changes.
+        int a = i >= 0 ? tour[i] : -1;
+        int b = tour[i + 1];
+        for (int k = i + 2; k <= to; k++) {
+          int c = tour[k];
+          double delta = a >= 0 ? instance.distance(a, c) - instance.distance(a, b) : 0;
+          if (k + 1 < len) {
+            int d = tour[k + 1];
+            delta += instance.distance(b, d) - instance.distance(c, d);
+          }
+          if (delta < -1e-9) {
+            for (int x = i + 1, y = k; x < y; x++, y--) {
+              Operators.swap(tour, x, y);
+            }
+            b = tour[i + 1];
+            improved = true;
+          }
+        }
+      }
+    }
+  }
+}
+// vim: ts=2:sw=2
@@ -1,19 +1,74 @@
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
 import java.util.Random;
 
 public class EdgeRecombinationCrossover {
 
-  private final int[][] matrix;
+  /**
+   * Each node has a row of STRIDE ints in the table: its next and previous
+   * nodes in parent 1 and parent 2, followed by the number of those that are
+   * still valid.
+   */
+  private static final int STRIDE = 5;
+  private static final int COUNT = 4;
+
+  /** The adjacency table, flattened into one array for locality. */
+  private int[] table;
   private final Random rand;
 
+  /**
+   * Whether to follow edges the way the parents do where possible, for
+   * asymmetric costs. The next node is then picked from those the parents go
+   * to from the current one, and only if there are none from those they come
+   * from.
+   */
+  private final boolean directed;
+
+  /**
+   * The nodes not yet placed in the child are remaining[0..remainingCount),
+   * and remainingPos[node] is the node's index in remaining. Placing a node
+   * swaps it to the end, so remaining is always a permutation of all nodes
+   * and nothing needs clearing before the next crossover.
+   */
+  private int[] remaining;
+  private int[] remainingPos;
+  private int remainingCount;
+
+  /**
+   * @param len The expected genome length. Other lengths are still accepted,
+   * the tables are resized as needed.
+   */
   public EdgeRecombinationCrossover(int len, Random rand) {
-    matrix = new int[len][];
+    this(len, rand, false);
+  }
+
+  /** @param directed Whether to prefer following edges the parents' way. */
+  public EdgeRecombinationCrossover(int len, Random rand, boolean directed) {
+    this.rand = rand;
+    this.directed = directed;
+    ensureCapacity(len);
+  }
+
+  private void ensureCapacity(int len) {
+    if (remaining != null && remaining.length == len) {
+      return;
+    }
+    table = new int[len * STRIDE];
+    remaining = new int[len];
+    remainingPos = new int[len];
     for (int i = 0; i < len; i++) {
-      matrix[i] = new int[5];
+      remaining[i] = i;
+      remainingPos[i] = i;
+    }
+  }
+
+  /**
+   * Forget the order earlier crossovers left remaining in, so that the next
+   * child depends only on the parents and the random generator.
+   */
+  public void reset() {
+    for (int i = 0; i < remaining.length; i++) {
+      remaining[i] = i;
+      remainingPos[i] = i;
     }
-    this.rand = rand;
   }
 
   /**
@@ -23,68 +78,84 @@ public class EdgeRecombinationCrossover {
    * Implementation detail: -1 is used to signify a deleted or unset node.
    */
   public int[] crossover(int[] parent1, int[] parent2) {
+    int[] child = new int[parent1.length];
+    crossover(parent1, parent2, child);
+    return child;
+  }
+
+  /**
+   * Edge recombination into an existing child array, which must not be one of
+   * the parents.
+   */
+  public void crossover(int[] parent1, int[] parent2, int[] child) {
+    ensureCapacity(parent1.length);
+
     // Fill with adjacent nodes
-    fillAdjacencyMatrix(parent1, parent2);
+    fillAdjacencyTable(parent1, parent2);
 
     // Create union of adjacent nodes by marking duplicates as -1
     removeDuplicateAdjacentNodes();
 
-    // Build the child path
-    int len = parent1.length;
-    int[] child = new int[len];
-    Arrays.fill(child, -1); // Since 0 is a valid node, fill with -1
-    int node = parent1[0];
+    buildChild(parent1[0], child);
+  }
+
+  /** Build the child path from the adjacency table, starting at node. */
+  private void buildChild(int node, int[] child) {
+    int len = child.length;
+    remainingCount = len;
     for (int i = 0; i < len - 1; i++) {
       child[i] = node;
+      removeFromRemaining(node);
       removeFromAllNeighbours(node);
 
       if (hasNeighbours(node)) {
         node = neighbourWithFewestNeigbours(node);
       } else {
-        node = randomNodeNotInChild(child);
+        node = randomNodeNotInChild();
       }
     }
     child[len - 1] = node;
-
-    return child;
   }
 
-  /** Fill the adjacency matrix using two parent genes */
-  private void fillAdjacencyMatrix(int[] parent1, int[] parent2) {
-    int len = matrix.length;
+  /**
+   * Fill the adjacency table using two parent genes. Every entry of the table
+   * is overwritten, so there is no need to clear it between crossovers.
+   */
+  private void fillAdjacencyTable(int[] parent1, int[] parent2) {
+    int len = parent1.length;
     for (int i = 0; i < len; i++) {
-      int parent1Node = parent1[i];
-      int parent2Node = parent2[i];
+      int row1 = parent1[i] * STRIDE;
+      int row2 = parent2[i] * STRIDE;
 
       int pos = i + 1;
       if (pos >= len) {
         pos -= len;
       }
-      matrix[parent1Node][0] = parent1[pos];
-      matrix[parent2Node][1] = parent2[pos];
+      table[row1] = parent1[pos];
+      table[row2 + 1] = parent2[pos];
 
       pos = i - 1;
       if (pos < 0) {
         pos += len;
       }
-      matrix[parent1Node][2] = parent1[pos];
-      matrix[parent2Node][3] = parent2[pos];
+      table[row1 + 2] = parent1[pos];
+      table[row2 + 3] = parent2[pos];
 
       // Optimization: use the 5th element to store the number of neighbours
-      matrix[i][4] = 4;
+      table[i * STRIDE + COUNT] = 4;
     }
   }
 
-  /** Mark duplicate adjacent nodes as -1 in the matrix. */
+  /** Mark duplicate adjacent nodes as -1 in the table. */
   private void removeDuplicateAdjacentNodes() {
-    for (int i = 0; i < matrix.length; i++) {
+    for (int row = 0; row < remaining.length * STRIDE; row += STRIDE) {
       for (int j = 0; j < 4; j++) {
-        int node = matrix[i][j];
+        int node = table[row + j];
         if (node > -1) {
           for (int c = j + 1; c < 4; c++) {
-            if (matrix[i][c] == node) {
-              matrix[i][c] = -1;
-              matrix[i][4]--;
+            if (table[row + c] == node) {
+              table[row + c] = -1;
+              table[row + COUNT]--;
             }
           }
         }
@@ -92,13 +163,23 @@ public class EdgeRecombinationCrossover {
     }
   }
 
-  /** Remove every instance of node from the adjacency matrix. */
+  /**
+   * Remove every instance of node from the adjacency table. Adjacency is
+   * symmetric, so node can only appear in the rows of its own neighbours and
+   * only those need to be searched. (Rows of nodes already in the child may
+   * still list it, but they are never read again.)
+   */
   private void removeFromAllNeighbours(int node) {
-    for (int i = 0; i < matrix.length; i++) {
-      for (int j = 0; j < 4; j++) {
-        if (matrix[i][j] == node) {
-          matrix[i][j] = -1;
-          matrix[i][4]--;
+    int row = node * STRIDE;
+    for (int i = 0; i < 4; i++) {
+      int neighbour = table[row + i];
+      if (neighbour > -1) {
+        int neighbourRow = neighbour * STRIDE;
+        for (int j = 0; j < 4; j++) {
+          if (table[neighbourRow + j] == node) {
+            table[neighbourRow + j] = -1;
+            table[neighbourRow + COUNT]--;
+          }
         }
       }
     }
@@ -106,7 +187,7 @@ public class EdgeRecombinationCrossover {
 
   /** Check if a list of neighbours has any valid ones. */
   private boolean hasNeighbours(int node) {
-    return matrix[node][4] > 0;
+    return table[node * STRIDE + COUNT] > 0;
   }
 
   /**
@@ -116,49 +197,59 @@ public class EdgeRecombinationCrossover {
   private int neighbourWithFewestNeigbours(int node) {
     // Let next node be neighbour of current node with fewest neighbors in
     // its list
-    List<Integer> neighboursWithFewestNeighbours = new ArrayList<Integer>(4);
+    int row = node * STRIDE;
+    int candidate0 = -1;
+    int candidate1 = -1;
+    int candidate2 = -1;
+    int candidate3 = -1;
+    int num = 0;
     int fewestNeighbours = 4;
-    for (int i = 0; i < 4; i++) {
-      int neighbour = matrix[node][i];
+    // The first two entries are the nodes the parents go to next
+    int entries = directed && (table[row] > -1 || table[row + 1] > -1) ? 2 : 4;
+    for (int i = 0; i < entries; i++) {
+      int neighbour = table[row + i];
       if (neighbour > -1) {
         // Get number of neighbours for this neighbour
-        int neighbourCount = matrix[neighbour][4];
+        int neighbourCount = table[neighbour * STRIDE + COUNT];
 
-        if (neighbourCount == fewestNeighbours) {
-          neighboursWithFewestNeighbours.add(neighbour);
-        } else if (neighbourCount < fewestNeighbours) {
+        if (neighbourCount < fewestNeighbours) {
           fewestNeighbours = neighbourCount;
-          neighboursWithFewestNeighbours.clear();
-          neighboursWithFewestNeighbours.add(neighbour);
+          num = 0;
+        }
+        if (neighbourCount == fewestNeighbours) {
+          switch (num++) {
+            case 0: candidate0 = neighbour; break;
+            case 1: candidate1 = neighbour; break;
+            case 2: candidate2 = neighbour; break;
+            default: candidate3 = neighbour; break;
+          }
         }
       }
     }
 
-    int num = neighboursWithFewestNeighbours.size();
-    return neighboursWithFewestNeighbours.get(rand.nextInt(num));
+    switch (rand.nextInt(num)) {
+      case 0: return candidate0;
+      case 1: return candidate1;
+      case 2: return candidate2;
+      default: return candidate3;
+    }
+  }
+
+  /** Remove a node from the pool of nodes not in the child. */
+  private void removeFromRemaining(int node) {
+    int pos = remainingPos[node];
+    int last = remaining[--remainingCount];
+    remaining[pos] = last;
+    remainingPos[last] = pos;
+    remaining[remainingCount] = node;
+    remainingPos[node] = remainingCount;
   }
 
   /**
-   * Pick a random node (assuming node values range between 0 - child.length)
-   * that is not already in the child gene.
-   * NOTE: If the child is already full of valid nodes this will loop forever
+   * Pick a random node that is not already in the child gene.
+   * NOTE: The child must not already be full.
    */
-  private int randomNodeNotInChild(int[] child) {
-    int len = child.length;
-    int randomNode;
-    do {
-      randomNode = rand.nextInt(len);
-    } while (contains(child, randomNode));
-    return randomNode;
-  }
-
-  /** Check if an array contains a value. */
-  private static boolean contains(int[] arr, int val) {
-    for (int i = 0; i < arr.length; i++) {
-      if (arr[i] == val) {
-        return true;
-      }
-    }
-    return false;
+  private int randomNodeNotInChild() {
+    return remaining[rand.nextInt(remainingCount)];
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,51 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of tour costs keyed by TourHash. When full the least
+ * recently used entry is evicted.
+ */
+class FitnessCache {
+
+  private final Map<Long, Double> costs;
+
+  private long hits = 0;
+  private long misses = 0;
+
+  FitnessCache(final int capacity) {
+    costs = new LinkedHashMap<Long, Double>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long, Double> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  /**
+   * Look up the cost of the tour with the given hash.
+   *
+   * @return The cost or null if the tour hasn't been seen recently.
+   */
+  Double get(long hash) {
+    Double cost = costs.get(hash);
+    if (cost != null) {
+      hits++;
+    } else {
+      misses++;
+    }
+    return cost;
+  }
+
+  void put(long hash, double cost) {
+    costs.put(hash, cost);
+  }
+
+  long getHits() {
+    return hits;
+  }
+
+  long getMisses() {
+    return misses;
+  }
+}
+// vim: ts=2:sw=2
@@ -0,0 +1,173 @@
+/**
+ * Calculates the cost of tours from flat arrays of city coordinates rather
+ * than by chasing City objects. Tours are evaluated in batches of four in
+ * lockstep, one tour per "lane", so that the gathers and square roots of
+ * independent tours can overlap in the pipeline.
+ *
+ * Given TravelCosts, tours are costed from those instead, one at a time.
+ * Given RouteConstraints, tours are costed with their penalties.
+ */
+class FitnessEvaluator {
+
+  /** Number of tours costed together by evaluate(). */
+  private static final int LANES = 4;
+
+  /**
+   * The x positions of the cities, pre-scaled the same way as
+   * City.proximity().
+   */
+  private final double[] xs;
+
+  /**
+   * The y positions of the cities, pre-scaled the same way as
+   * City.proximity().
+   */
+  private final double[] ys;
+
+  /** The costs to use instead of distances, if any. */
+  private final TravelCosts costs;
+
+  /** The constraints whose penalties tours are costed with, if any. */
+  private final RouteConstraints constraints;
+
+  FitnessEvaluator(City[] cities) {
+    this(cities, null, null);
+  }
+
+  FitnessEvaluator(City[] cities, TravelCosts costs, RouteConstraints constraints) {
+    if (costs != null && costs.size() != cities.length) {
+      throw new IllegalArgumentException("Costs are for " + costs.size() + " cities, not "
+          + cities.length);
+    }
+    this.costs = costs;
+    this.constraints = constraints;
+    int len = cities.length;
+    xs = new double[len];
+    ys = new double[len];
+    for (int i = 0; i < len; i++) {
+      xs[i] = cities[i].getScaledX();
+      ys[i] = cities[i].getScaledY();
+    }
+  }
+
+  /** Get the number of cities. */
+  int size() {
+    return xs.length;
+  }
+
+  /** Get the scaled x position of a city. */
+  double x(int city) {
+    return xs[city];
+  }
+
+  /** Get the scaled y position of a city. */
+  double y(int city) {
+    return ys[city];
+  }
+
+  /** Get the costs used instead of distances, or null. */
+  TravelCosts getCosts() {
+    return costs;
+  }
+
+  /** Get the constraints tours are penalised for breaking, or null. */
+  RouteConstraints getConstraints() {
+    return constraints;
+  }
+
+  /**
+   * The distance between cities a and b. With TravelCosts this is their
+   * least cost, which is symmetric and bounds the cost of any tour from below.
+   */
+  double distance(int a, int b) {
+    if (costs != null) {
+      return costs.leastCost(a, b);
+    }
+    double xdiff = xs[a] - xs[b];
+    double ydiff = ys[a] - ys[b];
+    return Math.sqrt(xdiff * xdiff + ydiff * ydiff);
+  }
+
+  /**
+   * Calculate the cost of a single tour. Without TravelCosts this gives
+   * exactly the same result as Chromosome.calculateCost().
+   */
+  double cost(int[] tour) {
+    if (constraints != null) {
+      return constraints.cost(tour);
+    }
+    if (costs != null) {
+      return costs.cost(tour);
+    }
+    double cost = 0;
+    int prev = tour[0];
+    for (int i = 1; i < tour.length; i++) {
+      int next = tour[i];
+      double xdiff = xs[prev] - xs[next];
+      double ydiff = ys[prev] - ys[next];
+      cost += Math.sqrt(xdiff * xdiff + ydiff * ydiff);
+      prev = next;
+    }
+    return cost;
+  }
+
+  /**
+   * Calculate and store the cost of the first count chromosomes in batch.
+   * NOTE: all the chromosomes must be the same length.
+   */
+  void evaluate(Chromosome[] batch, int count) {
+    int i = 0;
+    for (; costs == null && constraints == null && i + LANES <= count; i += LANES) {
+      evaluateLanes(batch[i], batch[i + 1], batch[i + 2], batch[i + 3]);
+    }
+    for (; i < count; i++) {
+      batch[i].cost = cost(batch[i].cityList);
+    }
+  }
+
+  /**
+   * Cost four tours at once. Each lane accumulates in the same order as
+   * cost() so the results are identical.
+   */
+  private void evaluateLanes(Chromosome c0, Chromosome c1, Chromosome c2, Chromosome c3) {
+    final int[] t0 = c0.cityList;
+    final int[] t1 = c1.cityList;
+    final int[] t2 = c2.cityList;
+    final int[] t3 = c3.cityList;
+    double cost0 = 0;
+    double cost1 = 0;
+    double cost2 = 0;
+    double cost3 = 0;
+    int p0 = t0[0];
+    int p1 = t1[0];
+    int p2 = t2[0];
+    int p3 = t3[0];
+    for (int i = 1; i < t0.length; i++) {
+      int n0 = t0[i];
+      int n1 = t1[i];
+      int n2 = t2[i];
+      int n3 = t3[i];
+      double x0 = xs[p0] - xs[n0];
+      double x1 = xs[p1] - xs[n1];
+      double x2 = xs[p2] - xs[n2];
+      double x3 = xs[p3] - xs[n3];
+      double y0 = ys[p0] - ys[n0];
+      double y1 = ys[p1] - ys[n1];
+      double y2 = ys[p2] - ys[n2];
+      double y3 = ys[p3] - ys[n3];
+      cost0 += Math.sqrt(x0 * x0 + y0 * y0);
+      cost1 += Math.sqrt(x1 * x1 + y1 * y1);
+      cost2 += Math.sqrt(x2 * x2 + y2 * y2);
+      cost3 += Math.sqrt(x3 * x3 + y3 * y3);
+      p0 = n0;
+      p1 = n1;
+      p2 = n2;
+      p3 = n3;
+    }
+    c0.cost = cost0;
+    c1.cost = cost1;
+    c2.cost = cost2;
+    c3.cost = cost3;
+  }
+}
+// vim: ts=2:sw=2
@@ -0,0 +1,88 @@
+/**
+ * A max-heap of population slots ordered by cost, so the worst individual can
+ * be found in O(1) and replaced in O(log n) without sorting the population.
+ * The position of every slot in the heap is tracked so that any slot's cost
+ * can be changed in place.
+ */
+class IndexedHeap {
+
+  /** heap[0] is the slot with the highest cost. */
+  private final int[] heap;
+  /** pos[slot] is the index of slot in heap. */
+  private final int[] pos;
+  private final double[] costs;
+
+  IndexedHeap(int size) {
+    heap = new int[size];
+    pos = new int[size];
+    costs = new double[size];
+  }
+
+  /** Fill the heap with the costs of a population. */
+  void build(Chromosome[] chromosomes) {
+    for (int i = 0; i < heap.length; i++) {
+      heap[i] = i;
+      pos[i] = i;
+      costs[i] = chromosomes[i].getCost();
+    }
+    for (int i = heap.length / 2 - 1; i >= 0; i--) {
+      siftDown(i);
+    }
+  }
+
+  /** Get the slot with the highest cost. */
+  int worst() {
+    return heap[0];
+  }
+
+  double worstCost() {
+    return costs[heap[0]];
+  }
+
+  /** Change the cost of a slot. */
+  void update(int slot, double cost) {
+    double old = costs[slot];
+    costs[slot] = cost;
+    if (cost > old) {
+      siftUp(pos[slot]);
+    } else {
+      siftDown(pos[slot]);
+    }
+  }
+
+  private void siftUp(int i) {
+    int slot = heap[i];
+    while (i > 0) {
+      int parent = (i - 1) / 2;
+      if (costs[heap[parent]] >= costs[slot]) {
+        break;
+      }
+      place(heap[parent], i);
+      i = parent;
+    }
+    place(slot, i);
+  }
+
+  private void siftDown(int i) {
+    int slot = heap[i];
+    int half = heap.length / 2;
+    while (i < half) {
+      int child = 2 * i + 1;
+      if (child + 1 < heap.length && costs[heap[child + 1]] > costs[heap[child]]) {
+        child++;
+      }
+      if (costs[slot] >= costs[heap[child]]) {
+        break;
+      }
+      place(heap[child], i);
+      i = child;
+    }
+    place(slot, i);
+  }
+
+  private void place(int slot, int i) {
+    heap[i] = slot;
+    pos[slot] = i;
+  }
+}
+// vim: ts=2:sw=2
@@ -0,0 +1,364 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * A set of cities along with the data derived from them that solvers use:
+ * the FitnessEvaluator, a distance matrix (for instances small enough) and the
+ * nearest neighbours of every city. Instances are immutable so one can be
+ * shared by any number of simulations, on any threads.
+ *
+ * An instance may have TravelCosts to use instead of distances. The matrix
+ * then holds the least cost between each pair of cities, and the neighbours
+ * of a city are those it costs least to travel between. An instance may also
+ * have RouteConstraints, which add penalties to the cost of tours.
+ */
+final class Instance {
+
+  /** Number of nearest neighbours kept per city. */
+  static final int NEIGHBOURS = 10;
+
+  /** Largest instance for which a full distance matrix is kept. */
+  static final int MATRIX_LIMIT = 2000;
+
+  private final City[] cities;
+  private final FitnessEvaluator evaluator;
+
+  /** Distances between every pair of cities, or null if too large. */
+  private final double[] matrix;
+
+  /**
+   * The nearest neighbours of each city, closest first: those of city i are
+   * neighbours[i * neighbourCount] onwards.
+   */
+  private final int[] neighbours;
+  private final int neighbourCount;
+
+  /** Content hash of the cities, computed on demand. */
+  private String key;
+
+  Instance(City[] cities) {
+    this(cities, (TravelCosts) null);
+  }
+
+  /** Create an instance whose tours are costed by costs, if not null. */
+  Instance(City[] cities, TravelCosts costs) {
+    this.cities = cities.clone();
+    evaluator = new FitnessEvaluator(this.cities, costs, null);
+    int len = cities.length;
+    matrix = len <= MATRIX_LIMIT ? buildMatrix(evaluator) : null;
+    neighbourCount = Math.min(NEIGHBOURS, len - 1);
+    neighbours = new NeighbourSearch(evaluator, neighbourCount).all();
+  }
+
+  /** Create an instance from data prepared earlier, e.g. by InstanceDelta. */
+  Instance(City[] cities, double[] matrix, int[] neighbours, int neighbourCount) {
+    this.cities = cities;
+    this.evaluator = new FitnessEvaluator(cities);
+    this.matrix = matrix;
+    this.neighbours = neighbours;
+    this.neighbourCount = neighbourCount;
+  }
+
+  private Instance(Instance base, FitnessEvaluator evaluator) {
+    this.cities = base.cities;
+    this.evaluator = evaluator;
+    this.matrix = base.matrix;
+    this.neighbours = base.neighbours;
+    this.neighbourCount = base.neighbourCount;
+  }
+
+  /**
+   * Get an instance like this one, sharing its data, whose tours are also
+   * penalised for breaking constraints.
+   */
+  Instance withConstraints(RouteConstraints constraints) {
+    if (constraints.size() != size()) {
+      throw new IllegalArgumentException("Constraints are for " + constraints.size()
+          + " cities, not " + size());
+    }
+    return new Instance(this, new FitnessEvaluator(cities, getCosts(), constraints));
+  }
+
+  private static double[] buildMatrix(FitnessEvaluator evaluator) {
+    int len = evaluator.size();
+    double[] matrix = new double[len * len];
+    for (int i = 0; i < len; i++) {
+      for (int j = i + 1; j < len; j++) {
+        double d = evaluator.distance(i, j);
+        matrix[i * len + j] = d;
+        matrix[j * len + i] = d;
+      }
+    }
+    return matrix;
+  }
+
+  /** Get the number of cities. */
+  int size() {
+    return cities.length;
+  }
+
+  /** Get the cities. The array must not be modified. */
+  City[] getCities() {
+    return cities;
+  }
+
+  FitnessEvaluator getEvaluator() {
+    return evaluator;
+  }
+
+  /** Get the costs used instead of distances, or null. */
+  TravelCosts getCosts() {
+    return evaluator.getCosts();
+  }
+
+  /** Get the constraints tours are penalised for breaking, or null. */
+  RouteConstraints getConstraints() {
+    return evaluator.getConstraints();
+  }
+
+  /**
+   * Whether tours cost the same either way round, as with plain distances,
+   * so that operators that assume so can be used. Time windows and loads
+   * depend on the direction.
+   */
+  boolean isSymmetric() {
+    TravelCosts costs = evaluator.getCosts();
+    return (costs == null || costs.isSymmetric()) && evaluator.getConstraints() == null;
+  }
+
+  /** The distance between cities a and b; see FitnessEvaluator.distance(). */
+  double distance(int a, int b) {
+    if (matrix != null) {
+      return matrix[a * cities.length + b];
+    }
+    return evaluator.distance(a, b);
+  }
+
+  /** Whether a full distance matrix is kept. */
+  boolean hasMatrix() {
+    return matrix != null;
+  }
+
+  /**
+   * Estimate the memory taken by the instance's data, which is dominated by
+   * the distance matrix where there is one.
+   */
+  long memorySize() {
+    // The cities and the evaluator's copy of their coordinates
+    long size = cities.length * 48L + neighbours.length * 4L;
+    if (matrix != null) {
+      size += matrix.length * 8L;
+    }
+    return size;
+  }
+
+  /** Get the distance matrix, or null. The array must not be modified. */
+  double[] getMatrix() {
+    return matrix;
+  }
+
+  /** Get the number of neighbours kept per city. */
+  int getNeighbourCount() {
+    return neighbourCount;
+  }
+
+  /** Get the rth nearest neighbour of city (0 is the nearest). */
+  int getNeighbour(int city, int r) {
+    return neighbours[city * neighbourCount + r];
+  }
+
+  /** Get all the neighbour lists. The array must not be modified. */
+  int[] getNeighbours() {
+    return neighbours;
+  }
+
+  /**
+   * Get a hash of the cities' coordinates, which identifies instances with the
+   * same cities in the same order.
+   */
+  String getKey() {
+    if (key == null) {
+      key = key(cities);
+    }
+    return key;
+  }
+
+  /** Get the key an Instance of these cities would have. */
+  static String key(City[] cities) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      ByteBuffer buffer = ByteBuffer.allocate(16);
+      for (City city : cities) {
+        buffer.clear();
+        buffer.putDouble(city.getx()).putDouble(city.gety());
+        digest.update(buffer.array());
+      }
+      StringBuilder sb = new StringBuilder();
+      for (byte b : digest.digest()) {
+        sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      // Every JVM is required to provide SHA-1
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Finds the nearest neighbours of cities using a uniform grid, so that each
+   * search only looks at nearby cells rather than every city. With TravelCosts
+   * the neighbours are ranked by least cost, which need not follow the
+   * coordinates, so every city is looked at.
+   */
+  static class NeighbourSearch {
+
+    private final FitnessEvaluator evaluator;
+    private final int k;
+    private final double minX;
+    private final double minY;
+    private final double cellSize;
+    private final int columns;
+    private final int rows;
+    /** Cities sorted by cell; cell c holds cellCities[cellStart[c]..cellStart[c + 1]). */
+    private final int[] cellStart;
+    private final int[] cellCities;
+
+    /** Scratch space for one search. */
+    private final int[] best;
+    private final double[] bestDistance;
+
+    NeighbourSearch(FitnessEvaluator evaluator, int k) {
+      this.evaluator = evaluator;
+      this.k = k;
+      int len = evaluator.size();
+      double maxX = Double.NEGATIVE_INFINITY;
+      double maxY = Double.NEGATIVE_INFINITY;
+      double lowX = Double.POSITIVE_INFINITY;
+      double lowY = Double.POSITIVE_INFINITY;
+      for (int i = 0; i < len; i++) {
+        lowX = Math.min(lowX, evaluator.x(i));
+        lowY = Math.min(lowY, evaluator.y(i));
+        maxX = Math.max(maxX, evaluator.x(i));
+        maxY = Math.max(maxY, evaluator.y(i));
+      }
+      minX = len > 0 ? lowX : 0;
+      minY = len > 0 ? lowY : 0;
+      double width = Math.max(maxX - minX, 1e-9);
+      double height = Math.max(maxY - minY, 1e-9);
+      // About two cities per cell
+      cellSize = Math.max(Math.sqrt(width * height * 2 / Math.max(len, 1)), 1e-9);
+      columns = (int) (width / cellSize) + 1;
+      rows = (int) (height / cellSize) + 1;
+
+      cellStart = new int[columns * rows + 1];
+      for (int i = 0; i < len; i++) {
+        cellStart[cell(i) + 1]++;
+      }
+      for (int c = 0; c < columns * rows; c++) {
+        cellStart[c + 1] += cellStart[c];
+      }
+      cellCities = new int[len];
+      int[] fill = Arrays.copyOf(cellStart, cellStart.length);
+      for (int i = 0; i < len; i++) {
+        cellCities[fill[cell(i)]++] = i;
+      }
+
+      best = new int[k];
+      bestDistance = new double[k];
+    }
+
+    private int column(double x) {
+      return Math.min(columns - 1, (int) ((x - minX) / cellSize));
+    }
+
+    private int row(double y) {
+      return Math.min(rows - 1, (int) ((y - minY) / cellSize));
+    }
+
+    private int cell(int city) {
+      return row(evaluator.y(city)) * columns + column(evaluator.x(city));
+    }
+
+    /** Find the neighbours of every city. */
+    int[] all() {
+      int len = evaluator.size();
+      int[] neighbours = new int[len * k];
+      for (int i = 0; i < len; i++) {
+        search(i, neighbours, i * k);
+      }
+      return neighbours;
+    }
+
+    /**
+     * Find the k nearest neighbours of a city and write them, closest first,
+     * to out[offset] onwards.
+     */
+    void search(int city, int[] out, int offset) {
+      if (k == 0) {
+        return;
+      }
+      int found = 0;
+      if (evaluator.getCosts() != null) {
+        // The grid can't bound the search, but TravelCosts are a full matrix
+        // so this is no slower than building them
+        for (int other = 0; other < evaluator.size(); other++) {
+          if (other != city) {
+            found = insert(other, evaluator.distance(city, other), found);
+          }
+        }
+        System.arraycopy(best, 0, out, offset, k);
+        return;
+      }
+      int column = column(evaluator.x(city));
+      int row = row(evaluator.y(city));
+      for (int ring = 0; ; ring++) {
+        // Once k are found, stop when the ring is further than the kth
+        if (found == k && (ring - 1) * cellSize > bestDistance[k - 1]) {
+          break;
+        }
+        if (ring > columns && ring > rows) {
+          break;
+        }
+        for (int r = row - ring; r <= row + ring; r++) {
+          if (r < 0 || r >= rows) {
+            continue;
+          }
+          boolean edgeRow = r == row - ring || r == row + ring;
+          int step = edgeRow ? 1 : 2 * ring;
+          for (int c = column - ring; c <= column + ring; c += Math.max(step, 1)) {
+            if (c < 0 || c >= columns) {
+              continue;
+            }
+            int cell = r * columns + c;
+            for (int p = cellStart[cell]; p < cellStart[cell + 1]; p++) {
+              int other = cellCities[p];
+              if (other != city) {
+                found = insert(other, evaluator.distance(city, other), found);
+              }
+            }
+          }
+        }
+      }
+      System.arraycopy(best, 0, out, offset, k);
+    }
+
+    /** Insert a candidate into the sorted best list, keeping at most k. */
+    private int insert(int city, double distance, int found) {
+      if (found == k && distance >= bestDistance[k - 1]) {
+        return found;
+      }
+      int i = found == k ? k - 1 : found++;
+      while (i > 0 && bestDistance[i - 1] > distance) {
+        best[i] = best[i - 1];
+        bestDistance[i] = bestDistance[i - 1];
+        i--;
+      }
+      best[i] = city;
+      bestDistance[i] = distance;
+      return found;
+    }
+  }
+}
+// vim: ts=2:sw=2
@@ -0,0 +1,235 @@
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Keeps the precomputed data of instances in files so that it needn't be
+ * computed again by later runs. Each file is named after the instance's key
+ * and holds the coordinates, the distance matrix (if any) and the neighbour
+ * lists:
+ *
+ *   int magic, int version, int cities, int neighbours, int hasMatrix,
+ *   int ORDER_MARK
+ *   double[cities * 2] coordinates
+ *   double[cities * cities] matrix, if hasMatrix
+ *   int[cities * neighbours] neighbour lists
+ *
+ * Files are memory-mapped and read in bulk into the arrays Instance uses.
+ * They are written in the machine's own byte order; a file from a machine
+ * with the other order, or with neighbours out of range, is treated as
+ * missing and written again.
+ * When the files come to more than the size limit the least recently used
+ * are deleted.
+ */
+class InstanceCache {
+
+  /** Identifies cache files, followed by a version number. */
+  private static final int MAGIC = 0x45434943; // "ECIC"
+  private static final int VERSION = 2;
+  private static final int HEADER_SIZE = 24;
+
+  /** Only reads back as itself in the byte order it was written in. */
+  private static final int ORDER_MARK = 0x01020304;
+
+  private static final String SUFFIX = ".inst";
+  private static final String TEMP_SUFFIX = SUFFIX + ".tmp";
+
+  /**
+   * Age after which a temporary file is taken to be left over from a write
+   * that never finished, rather than one in progress in another process.
+   */
+  private static final long STALE_TEMP_MILLIS = 60 * 1000;
+
+  private final File directory;
+  private final long maxBytes;
+
+  /**
+   * @param directory Where to keep the files. It is created if needed.
+   * @param maxBytes The most space the files may take up.
+   */
+  InstanceCache(File directory, long maxBytes) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Can't create " + directory);
+    }
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+    deleteStaleTemps();
+  }
+
+  /** Delete temporary files left by writes that were interrupted. */
+  private void deleteStaleTemps() {
+    final long cutoff = System.currentTimeMillis() - STALE_TEMP_MILLIS;
+    File[] temps = directory.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return file.getName().endsWith(TEMP_SUFFIX) && file.lastModified() < cutoff;
+      }
+    });
+    if (temps != null) {
+      for (File temp : temps) {
+        temp.delete();
+      }
+    }
+  }
+
+  /**
+   * Get the instance for a set of cities, from its file if there is one or
+   * else by building it and writing the file.
+   */
+  Instance get(City[] cities) throws IOException {
+    String key = Instance.key(cities);
+    File file = new File(directory, key + SUFFIX);
+    if (file.isFile()) {
+      Instance instance = read(file, cities);
+      if (instance != null) {
+        file.setLastModified(System.currentTimeMillis());
+        return instance;
+      }
+    }
+    Instance instance = new Instance(cities);
+    write(instance, file);
+    evict();
+    return instance;
+  }
+
+  /**
+   * Read an instance from a file.
+   *
+   * @param cities The cities the file should hold.
+   * @return The instance, or null if the file is out of date, isn't for
+   * these cities or is corrupt.
+   */
+  private static Instance read(File file, City[] cities) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      if (channel.size() < HEADER_SIZE) {
+        return null;
+      }
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      buffer.order(ByteOrder.nativeOrder());
+      if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+        return null;
+      }
+      int len = buffer.getInt();
+      int k = buffer.getInt();
+      boolean hasMatrix = buffer.getInt() != 0;
+      if (buffer.getInt() != ORDER_MARK || len != cities.length || k < 0) {
+        return null;
+      }
+      long expected = HEADER_SIZE + 16L * len + (hasMatrix ? 8L * len * len : 0) + 4L * len * k;
+      if (channel.size() != expected) {
+        return null;
+      }
+
+      DoubleBuffer doubles = buffer.asDoubleBuffer();
+      double[] coordinates = new double[len * 2];
+      doubles.get(coordinates);
+      for (int i = 0; i < len; i++) {
+        if (coordinates[2 * i] != cities[i].getx() || coordinates[2 * i + 1] != cities[i].gety()) {
+          // A different instance with the same key
+          return null;
+        }
+      }
+      double[] matrix = null;
+      if (hasMatrix) {
+        matrix = new double[len * len];
+        doubles.get(matrix);
+      }
+      buffer.position(buffer.position() + doubles.position() * 8);
+      int[] neighbours = new int[len * k];
+      buffer.asIntBuffer().get(neighbours);
+      for (int neighbour : neighbours) {
+        if (neighbour < 0 || neighbour >= len) {
+          return null;
+        }
+      }
+      return new Instance(cities.clone(), matrix, neighbours, k);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /** Write an instance to a file, replacing it atomically. */
+  private void write(Instance instance, File file) throws IOException {
+    int len = instance.size();
+    int k = instance.getNeighbourCount();
+    double[] matrix = instance.getMatrix();
+    long size = HEADER_SIZE + 16L * len + (matrix != null ? 8L * len * len : 0) + 4L * len * k;
+
+    File temp = File.createTempFile("instance", TEMP_SUFFIX, directory);
+    RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+    boolean written = false;
+    try {
+      raf.setLength(size);
+      MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      buffer.order(ByteOrder.nativeOrder());
+      buffer.putInt(MAGIC).putInt(VERSION).putInt(len).putInt(k)
+          .putInt(matrix != null ? 1 : 0).putInt(ORDER_MARK);
+      DoubleBuffer doubles = buffer.asDoubleBuffer();
+      for (City city : instance.getCities()) {
+        doubles.put(city.getx()).put(city.gety());
+      }
+      if (matrix != null) {
+        doubles.put(matrix);
+      }
+      buffer.position(buffer.position() + doubles.position() * 8);
+      buffer.asIntBuffer().put(instance.getNeighbours());
+      buffer.force();
+      written = true;
+    } finally {
+      raf.close();
+      if (!written) {
+        temp.delete();
+      }
+    }
+    if (!temp.renameTo(file)) {
+      file.delete();
+      if (!temp.renameTo(file)) {
+        temp.delete();
+        throw new IOException("Can't write " + file);
+      }
+    }
+  }
+
+  /** Delete the least recently used files until they fit the size limit. */
+  private void evict() {
+    File[] files = directory.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return file.getName().endsWith(SUFFIX);
+      }
+    });
+    if (files == null) {
+      return;
+    }
+    long total = 0;
+    for (File file : files) {
+      total += file.length();
+    }
+    if (total <= maxBytes) {
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        long diff = a.lastModified() - b.lastModified();
+        return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+      }
+    });
+    for (int i = 0; i < files.length - 1 && total > maxBytes; i++) {
+      long length = files[i].length();
+      if (files[i].delete()) {
+        total -= length;
+      }
+    }
+  }
+}
+// vim: ts=2:sw=2
@@ -0,0 +1,237 @@
+/**
+ * A small change to an instance: some cities removed and some added. The new
+ * instance is derived from the old one, copying the distance matrix and
+ * neighbour lists where they still hold rather than rebuilding them, and
+ * tours over the old instance can be repaired into tours over the new one.
+ *
+ * Cities that remain keep their relative order in the new instance and the
+ * added cities come after them.
+ */
+final class InstanceDelta {
+
+  private final Instance previous;
+  private final Instance instance;
+
+  /** The index of each old city in the new instance, or -1 if removed. */
+  private final int[] newIndex;
+
+  /** The index of the first added city in the new instance. */
+  private final int firstAdded;
+
+  private InstanceDelta(Instance previous, Instance instance, int[] newIndex, int firstAdded) {
+    this.previous = previous;
+    this.instance = instance;
+    this.newIndex = newIndex;
+    this.firstAdded = firstAdded;
+  }
+
+  /**
+   * Apply a change to an instance.
+   *
+   * @param previous The instance before the change.
+   * @param added The cities to add.
+   * @param removed The indices in previous of the cities to remove.
+   * @throws IllegalArgumentException If previous has TravelCosts or
+   * RouteConstraints, as those of the added cities aren't known.
+   */
+  static InstanceDelta apply(Instance previous, City[] added, int[] removed) {
+    if (previous.getCosts() != null || previous.getConstraints() != null) {
+      throw new IllegalArgumentException("Can't change an instance with travel costs or "
+          + "constraints");
+    }
+    int oldLen = previous.size();
+    int[] newIndex = new int[oldLen];
+    for (int city : removed) {
+      if (city < 0 || city >= oldLen) {
+        throw new IllegalArgumentException("No city " + city + " to remove");
+      }
+      newIndex[city] = -1;
+    }
+    City[] oldCities = previous.getCities();
+    int kept = 0;
+    for (int i = 0; i < oldLen; i++) {
+      if (newIndex[i] != -1) {
+        newIndex[i] = kept++;
+      }
+    }
+    int len = kept + added.length;
+    City[] cities = new City[len];
+    for (int i = 0; i < oldLen; i++) {
+      if (newIndex[i] != -1) {
+        cities[newIndex[i]] = oldCities[i];
+      }
+    }
+    System.arraycopy(added, 0, cities, kept, added.length);
+
+    FitnessEvaluator evaluator = new FitnessEvaluator(cities);
+    double[] matrix = len <= Instance.MATRIX_LIMIT
+        ? updateMatrix(previous, evaluator, newIndex, kept) : null;
+    int k = Math.min(Instance.NEIGHBOURS, len - 1);
+    int[] neighbours = k == previous.getNeighbourCount()
+        ? updateNeighbours(previous, evaluator, newIndex, kept, k)
+        : new Instance.NeighbourSearch(evaluator, k).all();
+    Instance instance = new Instance(cities, matrix, neighbours, k);
+    return new InstanceDelta(previous, instance, newIndex, kept);
+  }
+
+  /** Copy the distances between kept cities and compute the rest. */
+  private static double[] updateMatrix(Instance previous, FitnessEvaluator evaluator,
+      int[] newIndex, int kept) {
+    int len = evaluator.size();
+    double[] matrix = new double[len * len];
+    if (previous.hasMatrix()) {
+      double[] old = previous.getMatrix();
+      int oldLen = previous.size();
+      for (int i = 0; i < oldLen; i++) {
+        int row = newIndex[i];
+        if (row == -1) {
+          continue;
+        }
+        for (int j = 0; j < oldLen; j++) {
+          if (newIndex[j] != -1) {
+            matrix[row * len + newIndex[j]] = old[i * oldLen + j];
+          }
+        }
+      }
+    } else {
+      kept = 0;
+    }
+    for (int i = kept; i < len; i++) {
+      for (int j = 0; j < len; j++) {
+        double d = evaluator.distance(i, j);
+        matrix[i * len + j] = d;
+        matrix[j * len + i] = d;
+      }
+    }
+    return matrix;
+  }
+
+  /**
+   * Carry over the neighbour lists of kept cities. A list is searched again
+   * only if it loses a removed city; otherwise added cities closer than its
+   * furthest neighbour are merged in. Added cities' lists are searched.
+   */
+  private static int[] updateNeighbours(Instance previous, FitnessEvaluator evaluator,
+      int[] newIndex, int kept, int k) {
+    int len = evaluator.size();
+    int[] neighbours = new int[len * k];
+    if (k == 0) {
+      return neighbours;
+    }
+    Instance.NeighbourSearch search = new Instance.NeighbourSearch(evaluator, k);
+    int[] old = previous.getNeighbours();
+    double[] distances = new double[k];
+    for (int i = 0; i < newIndex.length; i++) {
+      int city = newIndex[i];
+      if (city == -1) {
+        continue;
+      }
+      int offset = city * k;
+      boolean lost = false;
+      for (int r = 0; r < k && !lost; r++) {
+        int neighbour = newIndex[old[i * k + r]];
+        lost = neighbour == -1;
+        neighbours[offset + r] = neighbour;
+      }
+      if (lost) {
+        search.search(city, neighbours, offset);
+        continue;
+      }
+      for (int r = 0; r < k; r++) {
+        distances[r] = evaluator.distance(city, neighbours[offset + r]);
+      }
+      for (int added = kept; added < len; added++) {
+        double d = evaluator.distance(city, added);
+        if (d < distances[k - 1]) {
+          int r = k - 1;
+          while (r > 0 && distances[r - 1] > d) {
+            neighbours[offset + r] = neighbours[offset + r - 1];
+            distances[r] = distances[r - 1];
+            r--;
+          }
+          neighbours[offset + r] = added;
+          distances[r] = d;
+        }
+      }
+    }
+    for (int added = kept; added < len; added++) {
+      search.search(added, neighbours, added * k);
+    }
+    return neighbours;
+  }
+
+  /** Get the instance before the change. */
+  Instance getPrevious() {
+    return previous;
+  }
+
+  /** Get the instance after the change. */
+  Instance getInstance() {
+    return instance;
+  }
+
+  /** Get the new index of an old city, or -1 if it was removed. */
+  int newIndex(int city) {
+    return newIndex[city];
+  }
+
+  /**
+   * Turn a tour of the old instance into a tour of the new one: removed cities
+   * are dropped, closing up the path, and each added city is put wherever it
+   * adds the least cost.
+   */
+  int[] repair(int[] tour) {
+    int len = instance.size();
+    int[] repaired = new int[len];
+    int count = 0;
+    for (int city : tour) {
+      int mapped = newIndex[city];
+      if (mapped != -1) {
+        repaired[count++] = mapped;
+      }
+    }
+    for (int added = firstAdded; added < len; added++) {
+      count = insertCheapest(repaired, count, added);
+    }
+    return repaired;
+  }
+
+  /** Repair every tour in a set. */
+  int[][] repair(int[][] tours) {
+    int[][] repaired = new int[tours.length][];
+    for (int i = 0; i < tours.length; i++) {
+      repaired[i] = repair(tours[i]);
+    }
+    return repaired;
+  }
+
+  /**
+   * Insert a city into the path tour[0..count) where it adds the least cost.
+   * The path is open, so it may also go at either end.
+   *
+   * @return The new length of the path.
+   */
+  private int insertCheapest(int[] tour, int count, int city) {
+    if (count == 0) {
+      tour[0] = city;
+      return 1;
+    }
+    int best = 0;
+    double bestCost = instance.distance(city, tour[0]);
+    for (int i = 1; i < count; i++) {
+      double cost = instance.distance(tour[i - 1], city) + instance.distance(city, tour[i])
+          - instance.distance(tour[i - 1], tour[i]);
+      if (cost < bestCost) {
+        bestCost = cost;
+        best = i;
+      }
+    }
+    if (instance.distance(tour[count - 1], city) < bestCost) {
+      best = count;
+    }
+    System.arraycopy(tour, best, tour, best + 1, count - best);
+    tour[best] = city;
+    return count + 1;
+  }
+}
+// vim: ts=2:sw=2
@@ -0,0 +1,111 @@
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a Simulation as one island of an island model: every few generations
+ * it sends copies of its best tours to the other islands over a
+ * MigrationTransport and takes in whatever tours have arrived from them.
+ * Sending and receiving never block, so a slow or dead island can't hold up
+ * the others.
+ */
+class Island implements Simulation.GenerationHook {
+
+  /** Generations between migrations. */
+  private static final int MIGRATION_INTERVAL = 20;
+
+  /** Number of tours sent per migration. */
+  private static final int MIGRANTS = 2;
+
+  private final int id;
+  private final Simulation simulation;
+  private final MigrationTransport transport;
+  private final City[] cities;
+  private final FitnessEvaluator evaluator;
+
+  /** The best tour seen on any island. */
+  private final AtomicReference<TourSnapshot> globalBest = new AtomicReference<TourSnapshot>();
+
+  /**
+   * @param id Identifies this island to the others.
+   * @param cities The cities, which must be the same on every island.
+   */
+  Island(int id, City[] cities, int populationSize, int parentPoolSize,
+      MigrationTransport transport) {
+    this.id = id;
+    this.cities = cities;
+    this.transport = transport;
+    Instance instance = new Instance(cities);
+    evaluator = instance.getEvaluator();
+    simulation = new Simulation(instance, populationSize, parentPoolSize);
+    simulation.setGenerationHook(this);
+  }
+
+  Simulation getSimulation() {
+    return simulation;
+  }
+
+  /** Run the island's simulation, then close the transport. */
+  Simulation.RunResult run() throws IOException {
+    try {
+      return simulation.simulate();
+    } finally {
+      transport.close();
+    }
+  }
+
+  /**
+   * Get the best tour found by this island or received from another.
+   *
+   * @return The tour, or null if there is none yet.
+   */
+  TourSnapshot getGlobalBest() {
+    TourSnapshot local = simulation.getBestTour();
+    TourSnapshot global = globalBest.get();
+    if (global == null || (local != null && local.getCost() <= global.getCost())) {
+      return local;
+    }
+    return global;
+  }
+
+  @Override
+  public void afterGeneration(Simulation simulation, int generation) {
+    for (Migrants migrants : transport.receive()) {
+      for (int i = 0; i < migrants.tours.length; i++) {
+        simulation.immigrate(migrants.tours[i]);
+      }
+      // The first migrant is the sender's best
+      if (migrants.tours.length > 0) {
+        offerGlobalBest(migrants.tours[0], generation);
+      }
+    }
+
+    if (generation % MIGRATION_INTERVAL == 0) {
+      int[][] best = simulation.getBestTours(MIGRANTS);
+      TourSnapshot local = simulation.getBestTour();
+      double bestCost = Double.POSITIVE_INFINITY;
+      if (local != null && best.length > 0) {
+        // The best tour ever found, which may have left the population
+        best[0] = local.getTour();
+        bestCost = local.getCost();
+      }
+      transport.send(new Migrants(id, bestCost, best));
+    }
+  }
+
+  /**
+   * Take a tour from another island as the global best if it is better. The
+   * tour is checked and costed here, as the sender's word for it can't be
+   * trusted.
+   */
+  private void offerGlobalBest(int[] tour, int generation) {
+    if (!Simulation.isTour(tour, cities.length)) {
+      return;
+    }
+    double cost = evaluator.cost(tour);
+    TourSnapshot current = globalBest.get();
+    if (current == null || cost < current.getCost()) {
+      globalBest.set(new TourSnapshot(cities, tour, cost, generation));
+    }
+  }
+}
+// vim: ts=2:sw=2
@@ -0,0 +1,528 @@
+import java.util.Random;
+
+/**
+ * Variable-depth local search in the style of Lin-Kernighan. Each step
+ * removes an edge of the tour and chains up to MAX_DEPTH 2-opt moves from
+ * it, each adding an edge to one of a city's nearest neighbours, and keeps
+ * the chain up to the point where the tour was shortest. The first moves of
+ * a chain try several neighbours in turn (see BREADTH). Or-opt moves, which
+ * move a segment of up to three cities elsewhere, catch improvements that the
+ * chains miss.
+ *
+ * Cities whose surroundings haven't changed since they last failed to give
+ * an improvement are skipped (don't-look bits), so that after the first pass
+ * only the parts of the tour that changed are searched again.
+ *
+ * Tours are open paths; internally they are closed into cycles through a
+ * dummy city at distance 0 from every city. Costs must be symmetric.
+ */
+class LinKernighan {
+
+  /** Most 2-opt moves chained together in one step. */
+  static final int MAX_DEPTH = 6;
+
+  /**
+   * How many choices of the next city to try at each of the first moves of a
+   * chain, best first, before giving up on it. Later moves only try the best.
+   */
+  private static final int[] BREADTH = { 5, 3 };
+  private static final int MAX_BREADTH = 5;
+
+  /** Longest segment moved by Or-opt. */
+  static final int MAX_SEGMENT = 3;
+
+  /** Cities between the cut points of the kicks used by solve(). */
+  private static final int KICK_SPAN = 50;
+
+  private static final double EPSILON = 1e-9;
+
+  private final Instance instance;
+  private final int len;
+  private final int dummy;
+  private final int size;
+
+  /** The cycle being improved and the position of each city in it. */
+  private final int[] tour;
+  private final int[] pos;
+
+  /** Cities to search from, in a ring buffer; the rest have don't-look bits. */
+  private final int[] queue;
+  private final boolean[] queued;
+  private int queueHead;
+  private int queueCount;
+
+  /** The reversals done by the current chain, so they can be undone. */
+  private final int[] moveFrom = new int[MAX_DEPTH];
+  private final int[] moveTo = new int[MAX_DEPTH];
+  private int moves;
+
+  /** The best gain of the current chain and the number of moves giving it. */
+  private double bestGain;
+  private int bestMoves;
+
+  /** The choices for t3 and t4 at each depth of the current chain, best first. */
+  private final int[][] choiceT3 = new int[MAX_DEPTH][MAX_BREADTH];
+  private final int[][] choiceT4 = new int[MAX_DEPTH][MAX_BREADTH];
+  private final double[][] choiceValue = new double[MAX_DEPTH][MAX_BREADTH];
+
+  /** The edges added by the current chain, which it mustn't remove. */
+  private final int[] addedA = new int[MAX_DEPTH];
+  private final int[] addedB = new int[MAX_DEPTH];
+
+  /** Cities whose edges the current step changed. */
+  private final int[] touched = new int[4 * MAX_DEPTH + 8];
+  private int touchedCount;
+
+  private final Random rand;
+
+  LinKernighan(Instance instance) {
+    this(instance, new Random());
+  }
+
+  LinKernighan(Instance instance, Random rand) {
+    if (!instance.isSymmetric()) {
+      throw new IllegalArgumentException("Costs must be symmetric");
+    }
+    this.instance = instance;
+    this.rand = rand;
+    len = instance.size();
+    dummy = len;
+    size = len + 1;
+    tour = new int[size];
+    pos = new int[size];
+    queue = new int[size];
+    queued = new boolean[size];
+  }
+
+  /**
+   * Improve a tour in place until no move helps or the deadline passes.
+   *
+   * @param path The tour, which must visit every city of the instance.
+   * @param deadline The System.nanoTime() at which to stop, or null for none.
+   * @return How much shorter the tour became.
+   */
+  double improve(int[] path, Long deadline) {
+    load(path);
+    for (int city = 0; city < len; city++) {
+      enqueue(city);
+    }
+    double gain = run(deadline);
+    store(path);
+    return gain;
+  }
+
+  /**
+   * Improve a tour in place, only searching from the given cities at first.
+   * Used after a small change to an already improved tour.
+   */
+  double improve(int[] path, int[] starts, Long deadline) {
+    load(path);
+    for (int city : starts) {
+      enqueue(city);
+    }
+    double gain = run(deadline);
+    store(path);
+    return gain;
+  }
+
+  /**
+   * Solve the instance from scratch: improve a nearest-neighbour tour, then
+   * repeatedly kick the best tour with a local double bridge and improve it
+   * again, keeping it if it got shorter (chained local search).
+   *
+   * @return The best tour found before the deadline.
+   */
+  TourSnapshot solve(long timeLimitMillis) {
+    long deadline = System.nanoTime() + timeLimitMillis * 1000000L;
+    FitnessEvaluator evaluator = instance.getEvaluator();
+    int[] best = new int[len];
+    new PopulationRestart(instance, rand).nearestNeighbourTour(rand.nextInt(Math.max(len, 1)), best);
+    improve(best, deadline);
+    double bestCost = evaluator.cost(best);
+    if (len < 8) {
+      return new TourSnapshot(instance.getCities(), best, bestCost, 0);
+    }
+
+    int[] trial = new int[len];
+    int[] starts = new int[6];
+    while (System.nanoTime() - deadline < 0) {
+      System.arraycopy(best, 0, trial, 0, len);
+      int span = Math.min(KICK_SPAN, (len - 2) / 3);
+      int a = 1 + rand.nextInt(len - 3 * span - 1);
+      int b = a + 1 + rand.nextInt(span);
+      int c = b + 1 + rand.nextInt(span);
+      Operators.doubleBridge(trial, a, b, c);
+      starts[0] = trial[a - 1];
+      starts[1] = trial[a];
+      starts[2] = trial[a + c - b - 1];
+      starts[3] = trial[a + c - b];
+      starts[4] = trial[c - 1];
+      starts[5] = trial[c];
+      improve(trial, starts, deadline);
+      double cost = evaluator.cost(trial);
+      if (cost < bestCost - EPSILON) {
+        bestCost = cost;
+        int[] swap = best;
+        best = trial;
+        trial = swap;
+      }
+    }
+    return new TourSnapshot(instance.getCities(), best, bestCost, 0);
+  }
+
+  /** Close the path into the cycle, through the dummy city. */
+  private void load(int[] path) {
+    for (int i = 0; i < len; i++) {
+      tour[i] = path[i];
+      pos[path[i]] = i;
+    }
+    tour[len] = dummy;
+    pos[dummy] = len;
+    queueHead = 0;
+    queueCount = 0;
+    for (int i = 0; i < size; i++) {
+      queued[i] = false;
+    }
+  }
+
+  /** Open the cycle at the dummy city and copy it to the path. */
+  private void store(int[] path) {
+    int start = pos[dummy] + 1;
+    for (int i = 0; i < len; i++) {
+      int p = start + i;
+      path[i] = tour[p >= size ? p - size : p];
+    }
+  }
+
+  private double run(Long deadline) {
+    if (len < 5) {
+      return 0;
+    }
+    double total = 0;
+    int steps = 0;
+    while (queueCount > 0) {
+      if ((++steps & 0xff) == 0 && deadline != null && System.nanoTime() - deadline >= 0) {
+        break;
+      }
+      int city = dequeue();
+      double gain = chainFrom(city);
+      if (gain <= 0) {
+        gain = orOptFrom(city);
+      }
+      if (gain > 0) {
+        total += gain;
+        // Search again around everything that changed
+        enqueue(city);
+        for (int i = 0; i < touchedCount; i++) {
+          enqueue(touched[i]);
+        }
+      }
+    }
+    return total;
+  }
+
+  private void enqueue(int city) {
+    if (city == dummy || queued[city]) {
+      return;
+    }
+    queued[city] = true;
+    int tail = queueHead + queueCount++;
+    queue[tail >= size ? tail - size : tail] = city;
+  }
+
+  private int dequeue() {
+    int city = queue[queueHead];
+    queueHead = queueHead + 1 == size ? 0 : queueHead + 1;
+    queueCount--;
+    queued[city] = false;
+    return city;
+  }
+
+  private double distance(int a, int b) {
+    return a == dummy || b == dummy ? 0 : instance.distance(a, b);
+  }
+
+  private int succ(int city) {
+    int p = pos[city] + 1;
+    return tour[p == size ? 0 : p];
+  }
+
+  private int pred(int city) {
+    int p = pos[city] - 1;
+    return tour[p < 0 ? size - 1 : p];
+  }
+
+  /** Reverse the cycle from position i to position j inclusive, wrapping. */
+  private void reverse(int i, int j) {
+    int count = j - i;
+    if (count < 0) {
+      count += size;
+    }
+    count++;
+    for (int k = count / 2; k > 0; k--) {
+      int a = tour[i];
+      int b = tour[j];
+      tour[i] = b;
+      pos[b] = i;
+      tour[j] = a;
+      pos[a] = j;
+      if (++i == size) {
+        i = 0;
+      }
+      if (--j < 0) {
+        j = size - 1;
+      }
+    }
+  }
+
+  /** Number of positions from i to j inclusive, wrapping. */
+  private int span(int i, int j) {
+    int count = j - i;
+    return (count < 0 ? count + size : count) + 1;
+  }
+
+  /**
+   * Try chains of 2-opt moves that start by removing an edge at t1.
+   *
+   * @return The gain, or 0 if no chain improved the tour.
+   */
+  private double chainFrom(int t1) {
+    double gain = chain(t1, 1);
+    return gain > 0 ? gain : chain(t1, -1);
+  }
+
+  /**
+   * One chain from t1, starting by removing its edge to its successor
+   * (direction 1) or predecessor (-1). Each 2-opt move removes (t1, t2) and
+   * (t3, t4), where t3 is a near neighbour of t2, and adds (t2, t3) and
+   * (t4, t1); the next move then removes (t1, t4). The chain is kept up to
+   * the point where the tour was shortest.
+   */
+  private double chain(int t1, int direction) {
+    int t2 = direction == 1 ? succ(t1) : pred(t1);
+    moves = 0;
+    bestMoves = 0;
+    bestGain = EPSILON;
+    touchedCount = 0;
+    touched[touchedCount++] = t2;
+
+    extend(t1, t2, distance(t1, t2), direction);
+
+    // Undo the moves after the best point of the chain
+    while (moves > bestMoves) {
+      moves--;
+      reverse(moveFrom[moves], moveTo[moves]);
+    }
+    return bestMoves > 0 ? bestGain : 0;
+  }
+
+  /**
+   * Add a move to the chain, whose last move left (t1, t2) to be removed with
+   * a gain of g so far. The choices for the move are tried best first until
+   * one leads to an improvement.
+   */
+  private void extend(int t1, int t2, double g, int direction) {
+    int depth = moves;
+    if (depth == MAX_DEPTH || t2 == dummy) {
+      return;
+    }
+    int breadth = depth < BREADTH.length ? BREADTH[depth] : 1;
+    int count = choose(t1, t2, g, direction, depth, breadth);
+    for (int c = 0; c < count; c++) {
+      int t3 = choiceT3[depth][c];
+      int t4 = choiceT4[depth][c];
+      double value = choiceValue[depth][c];
+
+      // Reverse t2..t4, or the rest of the cycle if that's shorter
+      int from = direction == 1 ? pos[t2] : pos[t4];
+      int to = direction == 1 ? pos[t4] : pos[t2];
+      if (span(from, to) * 2 > size) {
+        int newFrom = to + 1 == size ? 0 : to + 1;
+        to = from == 0 ? size - 1 : from - 1;
+        from = newFrom;
+      }
+      reverse(from, to);
+      moveFrom[moves] = from;
+      moveTo[moves] = to;
+      addedA[moves] = t2;
+      addedB[moves] = t3;
+      moves++;
+      touched[touchedCount++] = t3;
+      touched[touchedCount++] = t4;
+
+      double closed = value - distance(t4, t1);
+      if (closed > bestGain) {
+        bestGain = closed;
+        bestMoves = moves;
+      }
+      extend(t1, t4, value, succ(t1) == t4 ? 1 : -1);
+      if (bestMoves > 0) {
+        return;
+      }
+      moves--;
+      reverse(from, to);
+      touchedCount -= 2;
+    }
+  }
+
+  /**
+   * Find the best choices of t3, a near neighbour of t2 or the dummy city, to
+   * add an edge to, and the t4 whose edge to it is removed, by the gain so
+   * far less the edge added plus the edge removed.
+   *
+   * @return The number of choices, at most breadth, put in choiceT3[depth]
+   * and the like.
+   */
+  private int choose(int t1, int t2, double g, int direction, int depth, int breadth) {
+    int[] t3s = choiceT3[depth];
+    int[] t4s = choiceT4[depth];
+    double[] values = choiceValue[depth];
+    int count = 0;
+    int next = direction == 1 ? succ(t2) : pred(t2);
+    int prev = direction == 1 ? pred(t2) : succ(t2);
+    int k = instance.getNeighbourCount();
+    for (int r = -1; r < k; r++) {
+      // The dummy city comes first as it is at distance 0. Moves to it
+      // reverse an end of the path, and are only tried if they improve the
+      // tour, as otherwise every chain could go on through it.
+      int t3 = r < 0 ? dummy : instance.getNeighbour(t2, r);
+      double g1 = g - distance(t2, t3);
+      if (g1 <= EPSILON) {
+        // Neighbours are in order of distance, so the rest are no better
+        break;
+      }
+      if (t3 == next || t3 == prev) {
+        continue;
+      }
+      int t4 = direction == 1 ? pred(t3) : succ(t3);
+      if (isAdded(t3, t4, moves)) {
+        continue;
+      }
+      double value = g1 + distance(t3, t4);
+      if (t3 == dummy && value - distance(t4, t1) <= bestGain) {
+        continue;
+      }
+      if (count == breadth && value <= values[count - 1]) {
+        continue;
+      }
+      // Insert in order, dropping the worst if full
+      int i = count < breadth ? count++ : count - 1;
+      while (i > 0 && values[i - 1] < value) {
+        t3s[i] = t3s[i - 1];
+        t4s[i] = t4s[i - 1];
+        values[i] = values[i - 1];
+        i--;
+      }
+      t3s[i] = t3;
+      t4s[i] = t4;
+      values[i] = value;
+    }
+    return count;
+  }
+
+  /** Whether the chain so far added the edge a-b. */
+  private boolean isAdded(int a, int b, int moves) {
+    for (int i = 0; i < moves; i++) {
+      if ((addedA[i] == a && addedB[i] == b) || (addedA[i] == b && addedB[i] == a)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Try moving the segments of up to MAX_SEGMENT cities that start at s1 next
+   * to a near neighbour of either end, either way round.
+   *
+   * @return The gain, or 0 if no move improved the tour.
+   */
+  private double orOptFrom(int s1) {
+    int k = instance.getNeighbourCount();
+    int sL = s1;
+    for (int segment = 1; segment <= MAX_SEGMENT && segment + 3 <= size; segment++) {
+      if (segment > 1) {
+        sL = succ(sL);
+      }
+      if (sL == dummy) {
+        return 0;
+      }
+      int p = pred(s1);
+      int n = succ(sL);
+      double removeGain = distance(p, s1) + distance(sL, n) - distance(p, n);
+      if (removeGain <= EPSILON) {
+        continue;
+      }
+      for (int e = 0; e < 2; e++) {
+        int end = e == 0 ? s1 : sL;
+        for (int r = 0; r < k; r++) {
+          int c = instance.getNeighbour(end, r);
+          double d = distance(end, c);
+          if (d >= removeGain) {
+            break;
+          }
+          if (span(pos[s1], pos[c]) <= segment) {
+            continue;
+          }
+          // Insert between x and its successor y, with end next to c
+          for (int side = 0; side < 2; side++) {
+            int x = side == 0 ? c : pred(c);
+            int y = side == 0 ? succ(c) : c;
+            if (x == p || x == sL) {
+              continue;
+            }
+            int first = side == 0 ? end : (end == s1 ? sL : s1);
+            int last = first == s1 ? sL : s1;
+            double gain = removeGain - (distance(x, first) + distance(last, y) - distance(x, y));
+            if (gain > EPSILON) {
+              moveSegment(s1, sL, segment, x, first == sL);
+              touchedCount = 0;
+              touched[touchedCount++] = p;
+              touched[touchedCount++] = n;
+              touched[touchedCount++] = x;
+              touched[touchedCount++] = y;
+              touched[touchedCount++] = sL;
+              return gain;
+            }
+          }
+        }
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Move the segment s1..sL of count cities to between x and its successor,
+   * with s1 next to x, or sL if reversed. Done by reversing the segment
+   * together with the shorter side between it and x, then reversing back the
+   * parts that should keep their direction.
+   */
+  private void moveSegment(int s1, int sL, int count, int x, boolean reversed) {
+    int n = succ(sL);
+    int y = succ(x);
+    int p = pred(s1);
+    int before = span(pos[n], pos[x]);
+    int after = span(pos[y], pos[p]);
+    if (before <= after) {
+      // s1..sL n..x -> n..x sL..s1
+      int i = pos[s1];
+      reverse(i, pos[x]);
+      reverse(i, wrap(i + before - 1));
+      if (!reversed) {
+        reverse(wrap(i + before), wrap(i + before + count - 1));
+      }
+    } else {
+      // y..p s1..sL -> sL..s1 y..p
+      int i = pos[y];
+      reverse(i, pos[sL]);
+      reverse(wrap(i + count), wrap(i + count + after - 1));
+      if (!reversed) {
+        reverse(i, wrap(i + count - 1));
+      }
+    }
+  }
+
+  private int wrap(int position) {
+    return position >= size ? position - size : position;
+  }
+}
+// vim: ts=2:sw=2
@@ -0,0 +1,67 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A MigrationTransport between islands in the same process, for testing and
+ * for running islands on several threads. Migrants are encoded and decoded
+ * just as they would be over the network.
+ */
+class LoopbackTransport implements MigrationTransport {
+
+  /** Messages waiting per endpoint; further messages are dropped. */
+  private static final int QUEUE_SIZE = 16;
+
+  private final BlockingQueue<byte[]> inbox = new ArrayBlockingQueue<byte[]>(QUEUE_SIZE);
+  private volatile List<LoopbackTransport> peers = new ArrayList<LoopbackTransport>();
+
+  private LoopbackTransport() {
+  }
+
+  /** Create count endpoints, each connected to all the others. */
+  static List<LoopbackTransport> connect(int count) {
+    List<LoopbackTransport> endpoints = new ArrayList<LoopbackTransport>(count);
+    for (int i = 0; i < count; i++) {
+      endpoints.add(new LoopbackTransport());
+    }
+    for (LoopbackTransport endpoint : endpoints) {
+      for (LoopbackTransport other : endpoints) {
+        if (other != endpoint) {
+          endpoint.peers.add(other);
+        }
+      }
+    }
+    return endpoints;
+  }
+
+  @Override
+  public void send(Migrants migrants) {
+    byte[] message = migrants.encode();
+    for (LoopbackTransport peer : peers) {
+      peer.inbox.offer(message);
+    }
+  }
+
+  @Override
+  public List<Migrants> receive() {
+    List<Migrants> received = new ArrayList<Migrants>();
+    byte[] message;
+    while ((message = inbox.poll()) != null) {
+      try {
+        received.add(Migrants.decode(message));
+      } catch (IOException e) {
+        // Can't happen for messages we encoded ourselves
+        throw new AssertionError(e);
+      }
+    }
+    return received;
+  }
+
+  @Override
+  public void close() {
+    peers = new ArrayList<LoopbackTransport>();
+  }
+}
+// vim: ts=2:sw=2
@@ -0,0 +1,336 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Held-Karp lower bound on the cost of a tour, found by subgradient ascent
+ * over minimum 1-trees.
+ *
+ * Tours here are open paths, which are the same as cycles through an extra
+ * dummy city at distance 0 from every city. A 1-tree is then a minimum
+ * spanning tree of the real cities plus the two cheapest edges to the dummy.
+ * Each city gets a penalty that is added to the cost of its edges; the
+ * penalties are adjusted to push every city towards degree 2, which tightens
+ * the bound. Any tour's cost is at least the 1-tree cost minus twice the sum
+ * of the penalties.
+ *
+ * Instances with a distance matrix use Prim's algorithm over all edges.
+ * Larger ones only consider edges to each city's nearest neighbours, which is
+ * far faster but makes the result an estimate: a minimum spanning tree almost
+ * never needs other edges, but nothing guarantees it. See isExact().
+ */
+class LowerBound {
+
+  /** Most iterations of the ascent. */
+  static final int MAX_ITERATIONS = 300;
+
+  /** Iterations without improvement before the step size is halved. */
+  private static final int PATIENCE = 10;
+
+  private final Instance instance;
+  private final int len;
+  private final boolean dense;
+
+  /** Penalty of each city. */
+  private final double[] pi;
+  private final int[] degree;
+
+  /** Scratch space for Prim's algorithm. */
+  private final double[] key;
+  private final int[] parent;
+  private final boolean[] inTree;
+
+  /** The candidate graph in compressed rows, for sparse instances. */
+  private int[] edgeStart;
+  private int[] edgeTarget;
+
+  /** Indexed min-heap of cities by key, for sparse instances. */
+  private int[] heap;
+  private int[] heapPos;
+  private int heapSize;
+
+  private double bound = Double.NEGATIVE_INFINITY;
+
+  LowerBound(Instance instance) {
+    this.instance = instance;
+    len = instance.size();
+    dense = instance.hasMatrix();
+    pi = new double[len];
+    degree = new int[len];
+    key = new double[len];
+    parent = new int[len];
+    inTree = new boolean[len];
+    if (!dense) {
+      buildCandidateGraph();
+      heap = new int[len];
+      heapPos = new int[len];
+    }
+  }
+
+  /** Whether the bound is known to be valid rather than an estimate. */
+  boolean isExact() {
+    return dense;
+  }
+
+  /** Get the best bound found so far. */
+  double getBound() {
+    return bound;
+  }
+
+  /**
+   * Compute the bound, using a nearest-neighbour tour as the upper bound that
+   * guides the step size.
+   */
+  double compute() {
+    if (len < 2) {
+      bound = 0;
+      return bound;
+    }
+    int[] tour = new int[len];
+    new PopulationRestart(instance, new Random(0)).nearestNeighbourTour(0, tour);
+    return compute(instance.getEvaluator().cost(tour), MAX_ITERATIONS);
+  }
+
+  /**
+   * Run the subgradient ascent.
+   *
+   * @param upperBound The cost of a known tour, which sets the step size.
+   * @param iterations The most iterations to run.
+   * @return The best bound found.
+   */
+  double compute(double upperBound, int iterations) {
+    if (len < 2) {
+      bound = 0;
+      return bound;
+    }
+    Arrays.fill(pi, 0);
+    double lambda = 2;
+    int sinceImprovement = 0;
+    for (int iteration = 0; iteration < iterations; iteration++) {
+      double w = oneTree();
+      if (w > bound) {
+        bound = w;
+        sinceImprovement = 0;
+      } else if (++sinceImprovement >= PATIENCE) {
+        lambda /= 2;
+        sinceImprovement = 0;
+      }
+
+      double norm = 0;
+      for (int i = 0; i < len; i++) {
+        int g = degree[i] - 2;
+        norm += g * g;
+      }
+      if (norm == 0) {
+        // The 1-tree is a tour, so the bound is optimal
+        break;
+      }
+      if (lambda < 1e-6 || upperBound - w <= 0) {
+        break;
+      }
+      double step = lambda * (upperBound - w) / norm;
+      for (int i = 0; i < len; i++) {
+        pi[i] += step * (degree[i] - 2);
+      }
+    }
+    return bound;
+  }
+
+  /**
+   * Find the minimum 1-tree under the current penalties and fill in degree.
+   *
+   * @return The bound given by the 1-tree.
+   */
+  private double oneTree() {
+    Arrays.fill(degree, 0);
+    double cost = dense ? densePrim() : sparsePrim();
+    for (int i = 0; i < len; i++) {
+      if (parent[i] != -1) {
+        degree[i]++;
+        degree[parent[i]]++;
+      }
+    }
+
+    // The dummy city's two edges go to the cities with the lowest penalties
+    int first = 0;
+    int second = 1;
+    if (pi[second] < pi[first]) {
+      first = 1;
+      second = 0;
+    }
+    for (int i = 2; i < len; i++) {
+      if (pi[i] < pi[first]) {
+        second = first;
+        first = i;
+      } else if (pi[i] < pi[second]) {
+        second = i;
+      }
+    }
+    degree[first]++;
+    degree[second]++;
+    cost += pi[first] + pi[second];
+
+    double penalties = 0;
+    for (int i = 0; i < len; i++) {
+      penalties += pi[i];
+    }
+    return cost - 2 * penalties;
+  }
+
+  /** Prim's algorithm over all edges, O(n^2). */
+  private double densePrim() {
+    double[] matrix = instance.getMatrix();
+    Arrays.fill(inTree, false);
+    Arrays.fill(key, Double.POSITIVE_INFINITY);
+    Arrays.fill(parent, -1);
+    double cost = 0;
+    int city = 0;
+    for (int added = 0; added < len; added++) {
+      inTree[city] = true;
+      if (added > 0) {
+        cost += key[city];
+      }
+      int row = city * len;
+      int next = -1;
+      double nextKey = Double.POSITIVE_INFINITY;
+      for (int j = 0; j < len; j++) {
+        if (!inTree[j]) {
+          double d = matrix[row + j] + pi[city] + pi[j];
+          if (d < key[j]) {
+            key[j] = d;
+            parent[j] = city;
+          }
+          if (key[j] < nextKey) {
+            nextKey = key[j];
+            next = j;
+          }
+        }
+      }
+      city = next;
+    }
+    return cost;
+  }
+
+  /**
+   * Prim's algorithm over the candidate graph with a heap, O(m log n). If the
+   * graph is disconnected this gives a spanning forest.
+   */
+  private double sparsePrim() {
+    Arrays.fill(inTree, false);
+    Arrays.fill(key, Double.POSITIVE_INFINITY);
+    Arrays.fill(parent, -1);
+    Arrays.fill(heapPos, -1);
+    double cost = 0;
+    for (int root = 0; root < len; root++) {
+      if (inTree[root]) {
+        continue;
+      }
+      key[root] = 0;
+      heapSize = 0;
+      heapPush(root);
+      while (heapSize > 0) {
+        int city = heapPop();
+        inTree[city] = true;
+        cost += key[city];
+        for (int e = edgeStart[city]; e < edgeStart[city + 1]; e++) {
+          int j = edgeTarget[e];
+          if (!inTree[j]) {
+            double d = instance.distance(city, j) + pi[city] + pi[j];
+            if (d < key[j]) {
+              key[j] = d;
+              parent[j] = city;
+              if (heapPos[j] == -1) {
+                heapPush(j);
+              } else {
+                siftUp(heapPos[j]);
+              }
+            }
+          }
+        }
+      }
+    }
+    return cost;
+  }
+
+  /** Build the symmetric nearest-neighbour graph in compressed rows. */
+  private void buildCandidateGraph() {
+    int k = instance.getNeighbourCount();
+    edgeStart = new int[len + 1];
+    for (int i = 0; i < len; i++) {
+      for (int r = 0; r < k; r++) {
+        edgeStart[i + 1]++;
+        edgeStart[instance.getNeighbour(i, r) + 1]++;
+      }
+    }
+    for (int i = 0; i < len; i++) {
+      edgeStart[i + 1] += edgeStart[i];
+    }
+    edgeTarget = new int[edgeStart[len]];
+    int[] fill = Arrays.copyOf(edgeStart, len);
+    for (int i = 0; i < len; i++) {
+      for (int r = 0; r < k; r++) {
+        int j = instance.getNeighbour(i, r);
+        edgeTarget[fill[i]++] = j;
+        edgeTarget[fill[j]++] = i;
+      }
+    }
+  }
+
+  private void heapPush(int city) {
+    heap[heapSize] = city;
+    heapPos[city] = heapSize;
+    siftUp(heapSize++);
+  }
+
+  private int heapPop() {
+    int top = heap[0];
+    heapPos[top] = -1;
+    if (--heapSize > 0) {
+      heap[0] = heap[heapSize];
+      heapPos[heap[0]] = 0;
+      siftDown(0);
+    }
+    return top;
+  }
+
+  private void siftUp(int i) {
+    int city = heap[i];
+    while (i > 0) {
+      int up = (i - 1) / 2;
+      if (key[heap[up]] <= key[city]) {
+        break;
+      }
+      heap[i] = heap[up];
+      heapPos[heap[i]] = i;
+      i = up;
+    }
+    heap[i] = city;
+    heapPos[city] = i;
+  }
+
+  private void siftDown(int i) {
+    int city = heap[i];
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= heapSize) {
+        break;
+      }
+      if (child + 1 < heapSize && key[heap[child + 1]] < key[heap[child]]) {
+        child++;
+      }
+      if (key[city] <= key[heap[child]]) {
+        break;
+      }
+      heap[i] = heap[child];
+      heapPos[heap[i]] = i;
+      i = child;
+    }
+    heap[i] = city;
+    heapPos[city] = i;
+  }
+
+  /** The relative gap between a tour's cost and a lower bound. */
+  static double gap(double cost, double bound) {
+    return bound > 0 ? (cost - bound) / bound : Double.POSITIVE_INFINITY;
+  }
+}
+// vim: ts=2:sw=2
@@ -0,0 +1,114 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A batch of tours sent from one island to the others, along with the cost of
+ * the best tour that island has found. Batches are encoded compactly: cities
+ * take 16 bits where they fit and the whole batch is compressed. Single tours
+ * that leave a run use TourCodec instead.
+ */
+final class Migrants {
+
+  /** Upper bound on the decoded size of a batch, to reject garbage. */
+  private static final int MAX_DECODED_SIZE = 1 << 28;
+
+  /** The most cities a tour can have and still be sent with 16 bits per city. */
+  private static final int COMPACT_LIMIT = Character.MAX_VALUE + 1;
+
+  final int island;
+  final double bestCost;
+  final int[][] tours;
+
+  /**
+   * @param island Identifies the sending island.
+   * @param bestCost The cost of the sender's best tour.
+   * @param tours The migrating tours, all the same length, starting with the
+   * one bestCost is for.
+   */
+  Migrants(int island, double bestCost, int[][] tours) {
+    this.island = island;
+    this.bestCost = bestCost;
+    this.tours = tours;
+  }
+
+  byte[] encode() {
+    int count = tours.length;
+    int length = count > 0 ? tours[0].length : 0;
+    boolean compact = length <= COMPACT_LIMIT;
+    ByteBuffer raw = ByteBuffer.allocate(20 + count * length * (compact ? 2 : 4));
+    raw.putInt(island).putDouble(bestCost).putInt(count).putInt(length);
+    for (int[] tour : tours) {
+      for (int city : tour) {
+        if (compact) {
+          raw.putChar((char) city);
+        } else {
+          raw.putInt(city);
+        }
+      }
+    }
+
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    deflater.setInput(raw.array());
+    deflater.finish();
+    ByteArrayOutputStream out = new ByteArrayOutputStream(raw.capacity() / 2 + 16);
+    byte[] chunk = new byte[8192];
+    ByteBuffer size = ByteBuffer.allocate(4).putInt(raw.capacity());
+    out.write(size.array(), 0, 4);
+    while (!deflater.finished()) {
+      int n = deflater.deflate(chunk);
+      out.write(chunk, 0, n);
+    }
+    deflater.end();
+    return out.toByteArray();
+  }
+
+  static Migrants decode(byte[] data) throws IOException {
+    if (data.length < 4) {
+      throw new IOException("Truncated migrants");
+    }
+    int decodedSize = ByteBuffer.wrap(data, 0, 4).getInt();
+    if (decodedSize < 20 || decodedSize > MAX_DECODED_SIZE) {
+      throw new IOException("Bad migrants size " + decodedSize);
+    }
+    byte[] decoded = new byte[decodedSize];
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(data, 4, data.length - 4);
+      int n = 0;
+      while (n < decodedSize) {
+        int read = inflater.inflate(decoded, n, decodedSize - n);
+        if (read == 0 && (inflater.finished() || inflater.needsInput())) {
+          throw new IOException("Truncated migrants");
+        }
+        n += read;
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt migrants", e);
+    } finally {
+      inflater.end();
+    }
+
+    ByteBuffer raw = ByteBuffer.wrap(decoded);
+    int island = raw.getInt();
+    double bestCost = raw.getDouble();
+    int count = raw.getInt();
+    int length = raw.getInt();
+    boolean compact = length <= COMPACT_LIMIT;
+    if (count < 0 || length < 0
+        || (long) count * length * (compact ? 2 : 4) != raw.remaining()) {
+      throw new IOException("Inconsistent migrants header");
+    }
+    int[][] tours = new int[count][length];
+    for (int[] tour : tours) {
+      for (int i = 0; i < length; i++) {
+        tour[i] = compact ? raw.getChar() : raw.getInt();
+      }
+    }
+    return new Migrants(island, bestCost, tours);
+  }
+}
+// vim: ts=2:sw=2
@@ -0,0 +1,20 @@
+import java.io.Closeable;
+import java.util.List;
+
+/**
+ * Carries Migrants between islands. Implementations must never block the
+ * caller: if a peer is slow or gone, migrants to it are dropped.
+ */
+interface MigrationTransport extends Closeable {
+
+  /** Send migrants to every peer. */
+  void send(Migrants migrants);
+
+  /**
+   * Get the migrants that have arrived since the last call.
+   *
+   * @return A possibly empty list.
+   */
+  List<Migrants> receive();
+}
+// vim: ts=2:sw=2
@@ -16,7 +16,7 @@ public final class Operators {
   public static void invert(int[] arr, int x, int y) {
     int start = Math.min(x, y);
     int end = Math.max(x, y);
-    int half = (end - start) / 2;
+    int half = (end - start + 1) / 2;
     for (int i = 0; i < half; i++) {
       swap(arr, start + i, end - i);
     }
@@ -56,6 +56,25 @@ public final class Operators {
     }
   }
 
+  /**
+   * Double-bridge kick: cut the tour into A B C D at positions a < b < c and
+   * reconnect it as A C B D. This changes four edges in a way that 2-opt and
+   * Or-opt moves can't easily undo.
+   */
+  public static void doubleBridge(int[] arr, int a, int b, int c) {
+    // Swap the adjacent blocks B and C by reversing each, then both
+    reverse(arr, a, b - 1);
+    reverse(arr, b, c - 1);
+    reverse(arr, a, c - 1);
+  }
+
+  /** Reverse arr[from..to] (inclusive). */
+  private static void reverse(int[] arr, int from, int to) {
+    while (from < to) {
+      swap(arr, from++, to--);
+    }
+  }
+
   /**
    * Move an element in the array by removing it, shifting up/down the other
    * elements and then placing the element back in the array.
@@ -0,0 +1,211 @@
+import java.util.Arrays;
+
+/**
+ * Generalised partition crossover (GPX). The union of the two parents' edges
+ * is split into components by removing the edges the parents share; within
+ * each component the child takes whichever parent's edges are cheaper. As
+ * long as the result is a single tour it keeps every shared edge, and as a
+ * cycle it costs no more than either parent does as a cycle. Runs in O(n).
+ *
+ * Parents are treated as cycles (the edge from the last city back to the
+ * first is included) and the child is cut open at its longest edge, which
+ * gives the cheapest path that follows the child's cycle. Tours are costed
+ * as paths, though, so the child can still cost more than a parent whose
+ * own path leaves out a longer closing edge.
+ */
+public class PartitionCrossover {
+
+  private final FitnessEvaluator evaluator;
+
+  /** The two neighbours of each node in each parent, at 2 * node (+ 1). */
+  private int[] adjacent1;
+  private int[] adjacent2;
+
+  /** Union-find parents, which end up mapping each node to its component. */
+  private int[] component;
+
+  /** Per component: cost in each parent and the parent chosen. */
+  private double[] cost1;
+  private double[] cost2;
+  private int[] choice;
+  private int[] cuts;
+
+  public PartitionCrossover(FitnessEvaluator evaluator) {
+    this.evaluator = evaluator;
+  }
+
+  private void ensureCapacity(int len) {
+    if (component != null && component.length == len) {
+      return;
+    }
+    adjacent1 = new int[len * 2];
+    adjacent2 = new int[len * 2];
+    component = new int[len];
+    cost1 = new double[len];
+    cost2 = new double[len];
+    choice = new int[len];
+    cuts = new int[len];
+  }
+
+  /**
+   * Recombine two parents.
+   * NOTE: parent1.length == parent2.length
+   *
+   * @return The child, or a copy of the cheaper parent if the components
+   * could not be recombined into a single tour.
+   */
+  public int[] crossover(int[] parent1, int[] parent2) {
+    final int len = parent1.length;
+    if (len < 4) {
+      return parent1.clone();
+    }
+    ensureCapacity(len);
+    fillAdjacent(parent1, adjacent1);
+    fillAdjacent(parent2, adjacent2);
+
+    // Components of the graph of edges that are not shared
+    for (int i = 0; i < len; i++) {
+      component[i] = i;
+    }
+    for (int u = 0; u < len; u++) {
+      for (int k = 0; k < 2; k++) {
+        int v = adjacent1[2 * u + k];
+        if (!isShared(u, v)) {
+          union(u, v);
+        }
+        v = adjacent2[2 * u + k];
+        if (!isShared(u, v)) {
+          union(u, v);
+        }
+      }
+    }
+    for (int u = 0; u < len; u++) {
+      component[u] = find(u);
+    }
+
+    // Cost of each parent within each component, and the number of shared
+    // edges leaving each component
+    Arrays.fill(cost1, 0);
+    Arrays.fill(cost2, 0);
+    Arrays.fill(cuts, 0);
+    for (int u = 0; u < len; u++) {
+      int c = component[u];
+      for (int k = 0; k < 2; k++) {
+        int v = adjacent1[2 * u + k];
+        if (u < v && !isShared(u, v)) {
+          cost1[c] += evaluator.distance(u, v);
+        } else if (component[v] != c) {
+          cuts[c]++;
+        }
+        v = adjacent2[2 * u + k];
+        if (u < v && !isShared(u, v)) {
+          cost2[c] += evaluator.distance(u, v);
+        }
+      }
+    }
+
+    // First choose the cheaper parent in every component
+    for (int c = 0; c < len; c++) {
+      choice[c] = cost1[c] <= cost2[c] ? 1 : 2;
+    }
+    int[] child = new int[len];
+    if (buildChild(child)) {
+      return openAtLongestEdge(child);
+    }
+
+    // Components entered and left more than once can't be chosen
+    // independently: give them all the parent that is cheaper over them
+    double fused1 = 0;
+    double fused2 = 0;
+    for (int c = 0; c < len; c++) {
+      if (component[c] == c && cuts[c] != 2) {
+        fused1 += cost1[c];
+        fused2 += cost2[c];
+      }
+    }
+    int fusedChoice = fused1 <= fused2 ? 1 : 2;
+    for (int c = 0; c < len; c++) {
+      if (cuts[c] != 2) {
+        choice[c] = fusedChoice;
+      }
+    }
+    if (buildChild(child)) {
+      return openAtLongestEdge(child);
+    }
+
+    return evaluator.cost(parent1) <= evaluator.cost(parent2) ? parent1.clone() : parent2.clone();
+  }
+
+  /** Fill in the neighbours of each node, treating the tour as a cycle. */
+  private static void fillAdjacent(int[] tour, int[] adjacent) {
+    int len = tour.length;
+    for (int i = 0; i < len; i++) {
+      int node = tour[i];
+      adjacent[2 * node] = tour[i == 0 ? len - 1 : i - 1];
+      adjacent[2 * node + 1] = tour[i == len - 1 ? 0 : i + 1];
+    }
+  }
+
+  /** Whether the edge u-v is in both parents. */
+  private boolean isShared(int u, int v) {
+    return (adjacent1[2 * u] == v || adjacent1[2 * u + 1] == v)
+        && (adjacent2[2 * u] == v || adjacent2[2 * u + 1] == v);
+  }
+
+  private int find(int u) {
+    while (component[u] != u) {
+      component[u] = component[component[u]];
+      u = component[u];
+    }
+    return u;
+  }
+
+  private void union(int u, int v) {
+    int ru = find(u);
+    int rv = find(v);
+    if (ru != rv) {
+      component[ru] = rv;
+    }
+  }
+
+  /**
+   * Walk the child's edges: each node's two neighbours come from the parent
+   * chosen for its component.
+   *
+   * @return Whether the walk visited every node, i.e. the child is one tour.
+   */
+  private boolean buildChild(int[] child) {
+    int len = child.length;
+    int start = 0;
+    int prev = -1;
+    int node = start;
+    for (int i = 0; i < len; i++) {
+      child[i] = node;
+      int[] adjacent = choice[component[node]] == 1 ? adjacent1 : adjacent2;
+      int next = adjacent[2 * node] != prev ? adjacent[2 * node] : adjacent[2 * node + 1];
+      prev = node;
+      node = next;
+      if (node == start && i < len - 1) {
+        return false;
+      }
+    }
+    return node == start;
+  }
+
+  /** Rotate a cyclic tour so that its longest edge is the one left out. */
+  private int[] openAtLongestEdge(int[] tour) {
+    int len = tour.length;
+    int cut = 0;
+    double longest = -1;
+    for (int i = 0; i < len; i++) {
+      double d = evaluator.distance(tour[i], tour[i == len - 1 ? 0 : i + 1]);
+      if (d > longest) {
+        longest = d;
+        cut = i;
+      }
+    }
+    Operators.rotate(tour, len - cut - 1);
+    return tour;
+  }
+}
+// vim: ts=2:sw=2
@@ -0,0 +1,157 @@
+import java.util.Arrays;
+
+/**
+ * Low-overhead timing of the phases of each generation. Times are recorded
+ * into fixed log-linear histograms (in the style of HdrHistogram: every bucket
+ * is within 1/16 of its value) so recording never allocates.
+ *
+ * Usage within a generation:
+ * <pre>
+ *   long t = profiler.mark();
+ *   ...selection...
+ *   t = profiler.lap(Phase.SELECTION, t);
+ *   ...
+ *   profiler.endGeneration();
+ * </pre>
+ * Time spent in a phase is summed over the generation and recorded as one
+ * sample per phase by endGeneration(). Profiling can be switched on and off
+ * from any thread; when off, mark() and lap() do not read the clock.
+ */
+class PhaseProfiler {
+
+  enum Phase {
+    SELECTION, CROSSOVER, MUTATION, FITNESS, REPLACEMENT, SORT
+  }
+
+  /** Each power of two is split into this many buckets (well, half as many). */
+  private static final int SUB_BITS = 5;
+  private static final int SUB_COUNT = 1 << SUB_BITS;
+  private static final int HALF_COUNT = SUB_COUNT / 2;
+  private static final int BUCKETS = SUB_COUNT + (64 - SUB_BITS) * HALF_COUNT;
+
+  private volatile boolean enabled = false;
+
+  private final long[][] histograms = new long[Phase.values().length][BUCKETS];
+  private final long[] counts = new long[Phase.values().length];
+  private final long[] totals = new long[Phase.values().length];
+
+  /** Time accumulated in each phase during the current generation. */
+  private final long[] pending = new long[Phase.values().length];
+
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /**
+   * Start timing.
+   *
+   * @return The current time, or 0 if profiling is off.
+   */
+  long mark() {
+    return enabled ? System.nanoTime() : 0;
+  }
+
+  /**
+   * Add the time since mark to a phase.
+   *
+   * @return The current time, to be used as the mark for the next phase, or 0
+   * if profiling is off.
+   */
+  long lap(Phase phase, long mark) {
+    if (mark == 0) {
+      return mark();
+    }
+    long now = System.nanoTime();
+    pending[phase.ordinal()] += now - mark;
+    return now;
+  }
+
+  /** Record the time accumulated in each phase during this generation. */
+  void endGeneration() {
+    for (int i = 0; i < pending.length; i++) {
+      if (pending[i] > 0) {
+        histograms[i][bucket(pending[i])]++;
+        counts[i]++;
+        totals[i] += pending[i];
+        pending[i] = 0;
+      }
+    }
+  }
+
+  /** Forget everything recorded so far. */
+  void reset() {
+    for (int i = 0; i < histograms.length; i++) {
+      Arrays.fill(histograms[i], 0);
+      counts[i] = 0;
+      totals[i] = 0;
+      pending[i] = 0;
+    }
+  }
+
+  /** Get the number of generations in which the phase was timed. */
+  long getCount(Phase phase) {
+    return counts[phase.ordinal()];
+  }
+
+  /** Get the mean time spent in the phase per generation, in nanoseconds. */
+  double getMean(Phase phase) {
+    int i = phase.ordinal();
+    return counts[i] > 0 ? (double) totals[i] / counts[i] : Double.NaN;
+  }
+
+  /**
+   * Get the qth quantile of the time spent in the phase per generation, in
+   * nanoseconds.
+   */
+  long getQuantile(Phase phase, double q) {
+    int i = phase.ordinal();
+    long target = (long) Math.ceil(q * counts[i]);
+    long seen = 0;
+    for (int b = 0; b < BUCKETS; b++) {
+      seen += histograms[i][b];
+      if (seen >= target && seen > 0) {
+        return value(b);
+      }
+    }
+    return 0;
+  }
+
+  /** Get the bucket that holds value. */
+  private static int bucket(long value) {
+    if (value < SUB_COUNT) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+    int sub = (int) (value >>> exponent); // between HALF_COUNT and SUB_COUNT
+    return SUB_COUNT + (exponent - 1) * HALF_COUNT + (sub - HALF_COUNT);
+  }
+
+  /** Get the lowest value held in a bucket. */
+  private static long value(int bucket) {
+    if (bucket < SUB_COUNT) {
+      return bucket;
+    }
+    int exponent = (bucket - SUB_COUNT) / HALF_COUNT + 1;
+    long sub = (bucket - SUB_COUNT) % HALF_COUNT + HALF_COUNT;
+    return sub << exponent;
+  }
+
+  /** One line per phase: mean, median and 99th percentile in microseconds. */
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (Phase phase : Phase.values()) {
+      sb.append(phase)
+          .append(": mean ").append(getMean(phase) / 1000)
+          .append("us p50 ").append(getQuantile(phase, 0.5) / 1000.0)
+          .append("us p99 ").append(getQuantile(phase, 0.99) / 1000.0)
+          .append("us\n");
+    }
+    return sb.toString();
+  }
+}
+// vim: ts=2:sw=2
@@ -0,0 +1,133 @@
+import java.util.Random;
+
+/**
+ * Rejuvenates a population that has stopped improving. The elites are kept
+ * as they are; half of the rest become copies of elites with a double-bridge
+ * kick, and the other half new nearest-neighbour tours from random starting
+ * cities. Tours are written into the existing chromosomes' city lists so
+ * nothing is allocated.
+ */
+class PopulationRestart {
+
+  /** Fraction of the population kept as elites. */
+  static final double ELITE_FRACTION = 0.1;
+
+  private final Instance instance;
+  private final Random rand;
+
+  /**
+   * Cities not yet in the tour being built are remaining[0..remainingCount),
+   * and remainingPos[city] is the city's index in remaining.
+   */
+  private final int[] remaining;
+  private final int[] remainingPos;
+  private int remainingCount;
+
+  PopulationRestart(Instance instance, Random rand) {
+    this.instance = instance;
+    this.rand = rand;
+    int len = instance.size();
+    remaining = new int[len];
+    remainingPos = new int[len];
+    for (int i = 0; i < len; i++) {
+      remaining[i] = i;
+      remainingPos[i] = i;
+    }
+  }
+
+  /**
+   * Restart a population.
+   * NOTE: chromosomes must be sorted, best first.
+   */
+  void restart(Chromosome[] chromosomes) {
+    int elites = Math.max(1, (int) (chromosomes.length * ELITE_FRACTION));
+    FitnessEvaluator evaluator = instance.getEvaluator();
+    for (int i = elites; i < chromosomes.length; i++) {
+      Chromosome chromosome = chromosomes[i];
+      int[] tour = chromosome.getCityList();
+      if ((i & 1) == 0) {
+        int[] elite = chromosomes[i % elites].getCityList();
+        System.arraycopy(elite, 0, tour, 0, tour.length);
+        kick(tour);
+      } else {
+        nearestNeighbourTour(rand.nextInt(tour.length), tour);
+      }
+      chromosome.hash = TourHash.of(tour);
+      chromosome.cost = evaluator.cost(tour);
+    }
+  }
+
+  /** Apply a double-bridge kick at random positions. */
+  void kick(int[] tour) {
+    int len = tour.length;
+    if (len < 4) {
+      return;
+    }
+    // Three distinct cut points in 1..len-1
+    int a = 1 + rand.nextInt(len - 1);
+    int b = 1 + rand.nextInt(len - 2);
+    if (b >= a) {
+      b++;
+    }
+    int c = 1 + rand.nextInt(len - 3);
+    if (c >= Math.min(a, b)) {
+      c++;
+    }
+    if (c >= Math.max(a, b)) {
+      c++;
+    }
+    int first = Math.min(a, Math.min(b, c));
+    int last = Math.max(a, Math.max(b, c));
+    int middle = a + b + c - first - last;
+    Operators.doubleBridge(tour, first, middle, last);
+  }
+
+  /**
+   * Build a tour by always going to the nearest unvisited city. Only the
+   * neighbour lists are searched; if all of a city's neighbours have been
+   * visited, the nearest of the remaining cities is found by a scan.
+   */
+  void nearestNeighbourTour(int start, int[] tour) {
+    int len = tour.length;
+    remainingCount = len;
+    int k = instance.getNeighbourCount();
+    int city = start;
+    for (int i = 0; i < len; i++) {
+      tour[i] = city;
+      removeFromRemaining(city);
+      if (remainingCount == 0) {
+        break;
+      }
+      int next = -1;
+      for (int r = 0; r < k; r++) {
+        int neighbour = instance.getNeighbour(city, r);
+        if (remainingPos[neighbour] < remainingCount) {
+          next = neighbour;
+          break;
+        }
+      }
+      if (next == -1) {
+        double nearest = Double.POSITIVE_INFINITY;
+        for (int p = 0; p < remainingCount; p++) {
+          double d = instance.distance(city, remaining[p]);
+          if (d < nearest) {
+            nearest = d;
+            next = remaining[p];
+          }
+        }
+      }
+      city = next;
+    }
+  }
+
+  /** Remove a city from the pool of cities not in the tour. */
+  private void removeFromRemaining(int city) {
+    int pos = remainingPos[city];
+    int last = remaining[--remainingCount];
+    remaining[pos] = last;
+    remainingPos[last] = pos;
+    remaining[remainingCount] = city;
+    remainingPos[city] = remainingCount;
+  }
+}
+// vim: ts=2:sw=2
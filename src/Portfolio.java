@@ -0,0 +1,161 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Races several simulations of one instance against each other for a fixed
+ * time, one per thread, each with its own mix of operators. The best tour of
+ * all of them is kept in one place that every simulation publishes to without
+ * locking.
+ *
+ * Every RACE_INTERVAL generations each simulation compares itself with the
+ * leader. One that is more than LAG_TOLERANCE worse is stopped, and its
+ * thread starts a new simulation with the leader's operators, seeded with the
+ * leader's best tours, so the time goes to the most promising line.
+ */
+class Portfolio {
+
+  /** Generations between checks on whether a simulation is lagging. */
+  static final int RACE_INTERVAL = 50;
+
+  /** How much worse than the leader a simulation may be and carry on. */
+  static final double LAG_TOLERANCE = 0.05;
+
+  /** Tours a restarted simulation takes from the leader. */
+  private static final int SEED_TOURS = 10;
+
+  /** The operator mixes given to the simulations in turn. */
+  private static final Simulation.CrossoverType[] CROSSOVERS = {
+    Simulation.CrossoverType.EDGE_RECOMBINATION,
+    Simulation.CrossoverType.PARTITION,
+    Simulation.CrossoverType.EDGE_RECOMBINATION,
+    Simulation.CrossoverType.ORDER,
+  };
+  private static final Simulation.MutationType[] MUTATIONS = {
+    Simulation.MutationType.INVERT,
+    Simulation.MutationType.INVERT,
+    Simulation.MutationType.SWAP,
+    Simulation.MutationType.INVERT,
+  };
+
+  /** The best tour so far, the mix that found it and some of its population. */
+  private static class Leader {
+    final TourSnapshot tour;
+    final int mix;
+    final int[][] tours;
+
+    Leader(TourSnapshot tour, int mix, int[][] tours) {
+      this.tour = tour;
+      this.mix = mix;
+      this.tours = tours;
+    }
+  }
+
+  private final Instance instance;
+  private final int solvers;
+  private final int populationSize;
+  private final int parentPoolSize;
+
+  private final AtomicReference<Leader> leader = new AtomicReference<Leader>();
+  private final AtomicInteger restarts = new AtomicInteger();
+
+  Portfolio(Instance instance, int solvers, int populationSize, int parentPoolSize) {
+    this.instance = instance;
+    this.solvers = solvers;
+    this.populationSize = populationSize;
+    this.parentPoolSize = parentPoolSize;
+  }
+
+  /**
+   * Race the simulations until the time is up.
+   *
+   * @return The best tour found.
+   */
+  TourSnapshot solve(long timeLimitMillis) throws InterruptedException {
+    leader.set(null);
+    restarts.set(0);
+    final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeLimitMillis);
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < solvers; i++) {
+      final int mix = i % CROSSOVERS.length;
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          race(mix, deadline);
+        }
+      }, "Portfolio-" + i);
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Leader best = leader.get();
+    return best != null ? best.tour : null;
+  }
+
+  /** Get the number of lagging simulations that were restarted. */
+  int getRestarts() {
+    return restarts.get();
+  }
+
+  /** Body of each thread: run simulations until the deadline. */
+  private void race(int mix, long deadline) {
+    int[][] seeds = null;
+    while (System.nanoTime() - deadline < 0) {
+      final int currentMix = mix;
+      Simulation simulation = new Simulation(instance, populationSize, parentPoolSize);
+      simulation.setOperators(CROSSOVERS[mix], MUTATIONS[mix]);
+      simulation.setBudget(Integer.MAX_VALUE, deadline);
+      simulation.setInitialTours(seeds);
+      final boolean[] lagging = { false };
+      simulation.setGenerationHook(new Simulation.GenerationHook() {
+        @Override
+        public void afterGeneration(Simulation simulation, int generation) {
+          TourSnapshot best = publish(simulation, currentMix);
+          if (generation > 0 && generation % RACE_INTERVAL == 0) {
+            Leader current = leader.get();
+            if (best.getCost() > current.tour.getCost() * (1 + LAG_TOLERANCE)) {
+              lagging[0] = true;
+              simulation.stop();
+            }
+          }
+        }
+      });
+      simulation.simulate();
+      if (!lagging[0]) {
+        return;
+      }
+      // Take over the leader's line
+      restarts.incrementAndGet();
+      Leader current = leader.get();
+      mix = current.mix;
+      seeds = current.tours;
+    }
+  }
+
+  /**
+   * Make a simulation's best tour the leader if it beats the current one.
+   *
+   * @return The simulation's best tour.
+   */
+  private TourSnapshot publish(Simulation simulation, int mix) {
+    TourSnapshot best = simulation.getBestTour();
+    Leader candidate = null;
+    while (true) {
+      Leader current = leader.get();
+      if (current != null && current.tour.getCost() <= best.getCost()) {
+        return best;
+      }
+      if (candidate == null) {
+        candidate = new Leader(best, mix, simulation.getBestTours(SEED_TOURS));
+      }
+      if (leader.compareAndSet(current, candidate)) {
+        return best;
+      }
+    }
+  }
+}
+// vim: ts=2:sw=2
@@ -0,0 +1,188 @@
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Estimates quantiles of a stream of values in constant memory. This is a
+ * merging t-digest: values are summarised as weighted centroids, which are
+ * kept small near the tails so that extreme quantiles stay accurate. Two
+ * digests can be merged, so each thread can keep its own and combine them
+ * at the end.
+ */
+class QuantileDigest {
+
+  /** Controls the accuracy/size trade-off; about this many centroids are kept. */
+  private static final double COMPRESSION = 100;
+
+  private double[] means;
+  private double[] weights;
+  private int centroids = 0;
+
+  /** Values added since the last compression. */
+  private final double[] buffer;
+  private int buffered = 0;
+
+  private double totalWeight = 0;
+
+  QuantileDigest() {
+    int size = (int) (2 * COMPRESSION) + 10;
+    means = new double[size];
+    weights = new double[size];
+    buffer = new double[size * 4];
+  }
+
+  void add(double value) {
+    if (buffered == buffer.length) {
+      compress();
+    }
+    buffer[buffered++] = value;
+  }
+
+  /** Add everything in another digest to this one. */
+  void merge(QuantileDigest other) {
+    other.compress();
+    compress();
+    if (centroids + other.centroids == 0) {
+      return;
+    }
+    double[] mergedMeans = new double[centroids + other.centroids];
+    double[] mergedWeights = new double[mergedMeans.length];
+    System.arraycopy(means, 0, mergedMeans, 0, centroids);
+    System.arraycopy(weights, 0, mergedWeights, 0, centroids);
+    System.arraycopy(other.means, 0, mergedMeans, centroids, other.centroids);
+    System.arraycopy(other.weights, 0, mergedWeights, centroids, other.centroids);
+    combine(mergedMeans, mergedWeights, mergedMeans.length);
+  }
+
+  /** Get the total number of values added. */
+  long count() {
+    return (long) totalWeight + buffered;
+  }
+
+  /**
+   * Estimate the qth quantile.
+   *
+   * @param q Between 0 and 1.
+   * @return The estimate, or NaN if nothing has been added.
+   */
+  double quantile(double q) {
+    compress();
+    if (centroids == 0) {
+      return Double.NaN;
+    }
+    if (centroids == 1) {
+      return means[0];
+    }
+
+    // Interpolate between centroid centres, treating each centroid's weight
+    // as centred on its mean.
+    double target = q * totalWeight;
+    double cumulative = weights[0] / 2;
+    if (target <= cumulative) {
+      return means[0];
+    }
+    for (int i = 0; i < centroids - 1; i++) {
+      double step = (weights[i] + weights[i + 1]) / 2;
+      if (cumulative + step >= target) {
+        double fraction = (target - cumulative) / step;
+        return means[i] + fraction * (means[i + 1] - means[i]);
+      }
+      cumulative += step;
+    }
+    return means[centroids - 1];
+  }
+
+  /** Merge the buffered values into the centroids. */
+  private void compress() {
+    if (buffered == 0) {
+      return;
+    }
+    double[] mergedMeans = new double[centroids + buffered];
+    double[] mergedWeights = new double[mergedMeans.length];
+    System.arraycopy(means, 0, mergedMeans, 0, centroids);
+    System.arraycopy(weights, 0, mergedWeights, 0, centroids);
+    for (int i = 0; i < buffered; i++) {
+      mergedMeans[centroids + i] = buffer[i];
+      mergedWeights[centroids + i] = 1;
+    }
+    buffered = 0;
+    combine(mergedMeans, mergedWeights, mergedMeans.length);
+  }
+
+  /**
+   * Replace the centroids with the given ones, merging neighbours as long as
+   * the result stays within the size limit for its position in the
+   * distribution.
+   */
+  private void combine(double[] inMeans, double[] inWeights, int count) {
+    sortByMean(inMeans, inWeights, count);
+
+    double total = 0;
+    for (int i = 0; i < count; i++) {
+      total += inWeights[i];
+    }
+
+    int out = 0;
+    double weightSoFar = 0;
+    double limit = total * qLimit(0);
+    double mean = inMeans[0];
+    double weight = inWeights[0];
+    for (int i = 1; i < count; i++) {
+      if (weightSoFar + weight + inWeights[i] <= limit) {
+        weight += inWeights[i];
+        mean += (inMeans[i] - mean) * inWeights[i] / weight;
+      } else {
+        out = emit(out, mean, weight);
+        weightSoFar += weight;
+        limit = total * qLimit(weightSoFar / total);
+        mean = inMeans[i];
+        weight = inWeights[i];
+      }
+    }
+    centroids = emit(out, mean, weight);
+    totalWeight = total;
+  }
+
+  private int emit(int index, double mean, double weight) {
+    if (index == means.length) {
+      means = Arrays.copyOf(means, index * 2);
+      weights = Arrays.copyOf(weights, index * 2);
+    }
+    means[index] = mean;
+    weights[index] = weight;
+    return index + 1;
+  }
+
+  /**
+   * The quantile up to which a centroid starting at quantile q may extend,
+   * using the k1 scale function k(q) = delta / (2 pi) * asin(2q - 1).
+   */
+  private static double qLimit(double q) {
+    double k = COMPRESSION / (2 * Math.PI) * Math.asin(2 * q - 1);
+    double next = Math.min(k + 1, COMPRESSION / 4);
+    return (Math.sin(next * 2 * Math.PI / COMPRESSION) + 1) / 2;
+  }
+
+  /** Sort the centroids by mean, keeping the weights with them. */
+  private static void sortByMean(double[] m, double[] w, int count) {
+    Integer[] order = new Integer[count];
+    for (int i = 0; i < count; i++) {
+      order[i] = i;
+    }
+    final double[] keys = m;
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Double.compare(keys[a], keys[b]);
+      }
+    });
+    double[] sortedMeans = new double[count];
+    double[] sortedWeights = new double[count];
+    for (int i = 0; i < count; i++) {
+      sortedMeans[i] = m[order[i]];
+      sortedWeights[i] = w[order[i]];
+    }
+    System.arraycopy(sortedMeans, 0, m, 0, count);
+    System.arraycopy(sortedWeights, 0, w, 0, count);
+  }
+}
+// vim: ts=2:sw=2
@@ -0,0 +1,274 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Writes per-generation results (run, generation, cost) to a file without
+ * holding up the simulations producing them. Each thread appends to its own
+ * batch; full batches are handed to a background thread, which writes them
+ * through a FileChannel, and the thread carries on with a spare batch.
+ *
+ * Results can be written as CSV or as a compact binary format in which each
+ * batch is stored column by column. toCsv() converts the binary format.
+ *
+ * Threads must stop appending before close() is called.
+ */
+class ResultWriter implements Closeable {
+
+  enum Format {
+    CSV, BINARY
+  }
+
+  /** Records per batch. */
+  private static final int BATCH_SIZE = 8192;
+
+  /** Full batches waiting to be written; appending blocks if this is full. */
+  private static final int QUEUE_SIZE = 64;
+
+  /** Identifies the binary format, followed by a version number. */
+  private static final int MAGIC = 0x45435253; // "ECRS"
+  private static final int VERSION = 1;
+
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  /** A column-oriented batch of records. */
+  private static class Batch {
+    final int[] runs = new int[BATCH_SIZE];
+    final int[] generations = new int[BATCH_SIZE];
+    final double[] costs = new double[BATCH_SIZE];
+    int size = 0;
+  }
+
+  /** Tells the writer thread to finish. */
+  private static final Batch END = new Batch();
+
+  private final Format format;
+  private final FileChannel channel;
+  private final RandomAccessFile file;
+  private final ByteBuffer out;
+
+  private final BlockingQueue<Batch> full = new ArrayBlockingQueue<Batch>(QUEUE_SIZE);
+  private final ConcurrentLinkedQueue<Batch> spare = new ConcurrentLinkedQueue<Batch>();
+
+  /** Every thread's current batch, so that close() can write partial ones. */
+  private final List<Batch[]> current = new ArrayList<Batch[]>();
+
+  private final ThreadLocal<Batch[]> threadBatch = new ThreadLocal<Batch[]>() {
+    @Override
+    protected Batch[] initialValue() {
+      Batch[] holder = { new Batch() };
+      synchronized (current) {
+        current.add(holder);
+      }
+      return holder;
+    }
+  };
+
+  private final Thread writer;
+  private volatile IOException failure;
+
+  ResultWriter(File path, Format format) throws IOException {
+    this.format = format;
+    file = new RandomAccessFile(path, "rw");
+    file.setLength(0);
+    channel = file.getChannel();
+    // Large enough for a whole batch in either format
+    out = ByteBuffer.allocateDirect(BATCH_SIZE * 64 + 64);
+
+    if (format == Format.BINARY) {
+      out.putInt(MAGIC).putInt(VERSION);
+    } else {
+      out.put("run,generation,cost\n".getBytes(ASCII));
+    }
+    out.flip();
+    write();
+
+    writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeBatches();
+      }
+    }, "ResultWriter");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /** Record the cost of the best tour of a run at a generation. */
+  void append(int run, int generation, double cost) {
+    Batch[] holder = threadBatch.get();
+    Batch batch = holder[0];
+    int i = batch.size++;
+    batch.runs[i] = run;
+    batch.generations[i] = generation;
+    batch.costs[i] = cost;
+    if (batch.size == BATCH_SIZE) {
+      submit(batch);
+      Batch next = spare.poll();
+      holder[0] = next != null ? next : new Batch();
+    }
+  }
+
+  /**
+   * Queue a batch for the writer thread, waiting for space. If the thread is
+   * interrupted while waiting the batch is dropped, close() reports the loss,
+   * and the interrupt is left set for the caller to act on.
+   */
+  private void submit(Batch batch) {
+    try {
+      full.put(batch);
+    } catch (InterruptedException e) {
+      if (failure == null) {
+        failure = new InterruptedIOException("Interrupted, dropped "
+            + batch.size + " results");
+      }
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Body of the writer thread. */
+  private void writeBatches() {
+    try {
+      while (true) {
+        Batch batch = full.take();
+        if (batch == END) {
+          return;
+        }
+        if (failure == null) {
+          try {
+            encode(batch);
+            write();
+          } catch (IOException e) {
+            failure = e;
+          } catch (RuntimeException e) {
+            // Keep taking batches so that appending threads never block
+            failure = new IOException("Failed to write results", e);
+          }
+        }
+        batch.size = 0;
+        spare.offer(batch);
+      }
+    } catch (InterruptedException e) {
+      // Closing
+    }
+  }
+
+  private void encode(Batch batch) {
+    out.clear();
+    if (format == Format.BINARY) {
+      out.putInt(batch.size);
+      for (int i = 0; i < batch.size; i++) {
+        out.putInt(batch.runs[i]);
+      }
+      for (int i = 0; i < batch.size; i++) {
+        out.putInt(batch.generations[i]);
+      }
+      for (int i = 0; i < batch.size; i++) {
+        out.putDouble(batch.costs[i]);
+      }
+    } else {
+      StringBuilder sb = new StringBuilder(batch.size * 32);
+      for (int i = 0; i < batch.size; i++) {
+        sb.append(batch.runs[i]).append(',')
+            .append(batch.generations[i]).append(',')
+            .append(batch.costs[i]).append('\n');
+      }
+      out.put(sb.toString().getBytes(ASCII));
+    }
+    out.flip();
+  }
+
+  private void write() throws IOException {
+    while (out.hasRemaining()) {
+      channel.write(out);
+    }
+  }
+
+  /**
+   * Write everything appended so far and close the file.
+   *
+   * @throws IOException If any write failed, or results were dropped, with
+   * the first such failure.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (current) {
+      for (Batch[] holder : current) {
+        if (holder[0].size > 0) {
+          submit(holder[0]);
+          holder[0] = new Batch();
+        }
+      }
+    }
+    submit(END);
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    file.close();
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /** Convert a file written in the binary format to CSV. */
+  static void toCsv(File binary, File csv) throws IOException {
+    DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(binary), 1 << 16));
+    try {
+      if (in.readInt() != MAGIC) {
+        throw new IOException(binary + " is not a binary result file");
+      }
+      int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported result file version " + version);
+      }
+      ResultWriter writer = new ResultWriter(csv, Format.CSV);
+      try {
+        Batch batch = new Batch();
+        while (true) {
+          int size;
+          try {
+            size = in.readInt();
+          } catch (EOFException e) {
+            break;
+          }
+          if (size < 0 || size > BATCH_SIZE) {
+            throw new IOException("Corrupt batch of " + size + " results in " + binary);
+          }
+          for (int i = 0; i < size; i++) {
+            batch.runs[i] = in.readInt();
+          }
+          for (int i = 0; i < size; i++) {
+            batch.generations[i] = in.readInt();
+          }
+          for (int i = 0; i < size; i++) {
+            batch.costs[i] = in.readDouble();
+          }
+          for (int i = 0; i < size; i++) {
+            writer.append(batch.runs[i], batch.generations[i], batch.costs[i]);
+          }
+        }
+      } finally {
+        writer.close();
+      }
+    } finally {
+      in.close();
+    }
+  }
+}
+// vim: ts=2:sw=2
@@ -0,0 +1,184 @@
+/**
+ * Time windows and vehicle capacity for routes. Each city has a window in
+ * which service must start, a service time and a demand: positive to pick up
+ * a load, negative to deliver one. The vehicle leaves the first city with
+ * initialLoad on board and its load must stay between 0 and capacity.
+ *
+ * Tours that break the constraints are penalised rather than rejected. Late
+ * arrivals are treated as "time warp": the vehicle travels back in time to
+ * the end of the window, and each unit of time warp costs
+ * TIME_WARP_PENALTY. Each unit the load goes outside its limits, at its
+ * worst, costs LOAD_PENALTY. The route may start whenever suits it best.
+ *
+ * Any part of a route is summed up by a Segment of a fixed size, and the
+ * summaries of two parts can be joined into that of the whole in constant
+ * time (Vidal et al., 2013). RouteSegments uses this to check moves without
+ * going over the route again.
+ */
+final class RouteConstraints {
+
+  /** Cost of each unit of lateness. */
+  static final double TIME_WARP_PENALTY = 1000;
+
+  /** Cost of each unit of load over capacity or below empty. */
+  static final double LOAD_PENALTY = 1000;
+
+  private final Instance instance;
+  private final TravelCosts costs;
+  private final double[] ready;
+  private final double[] due;
+  private final double[] service;
+  private final double[] demand;
+  private final double capacity;
+  private final double initialLoad;
+
+  /**
+   * @param instance The instance whose costs give the travel times. They
+   * must not depend on time.
+   * @param ready The start of each city's window.
+   * @param due The end of each city's window.
+   * @param service The time spent at each city.
+   * @param demand The load picked up at each city, negative for deliveries.
+   */
+  RouteConstraints(Instance instance, double[] ready, double[] due, double[] service,
+      double[] demand, double capacity, double initialLoad) {
+    int len = instance.size();
+    if (ready.length != len || due.length != len || service.length != len
+        || demand.length != len) {
+      throw new IllegalArgumentException("Need a value for each of " + len + " cities");
+    }
+    if (instance.getCosts() != null && instance.getCosts().isTimeDependent()) {
+      throw new IllegalArgumentException("Travel times can't depend on time");
+    }
+    this.instance = instance;
+    this.costs = instance.getCosts();
+    this.ready = ready.clone();
+    this.due = due.clone();
+    this.service = service.clone();
+    this.demand = demand.clone();
+    this.capacity = capacity;
+    this.initialLoad = initialLoad;
+  }
+
+  /** Get the number of cities. */
+  int size() {
+    return ready.length;
+  }
+
+  /** The travel time from one city to another. */
+  double travel(int from, int to) {
+    return costs != null ? costs.cost(from, to) : instance.distance(from, to);
+  }
+
+  /** Calculate the penalised cost of a tour. */
+  double cost(int[] tour) {
+    return summarise(tour, new Segment()).penalisedCost();
+  }
+
+  /** Whether a tour keeps to every window and the capacity. */
+  boolean isFeasible(int[] tour) {
+    return summarise(tour, new Segment()).isFeasible();
+  }
+
+  /** Summarise a whole tour into out. */
+  Segment summarise(int[] tour, Segment out) {
+    Segment city = new Segment();
+    out.clear();
+    for (int c : tour) {
+      city(c, city);
+      out.append(city);
+    }
+    return out;
+  }
+
+  /** Summarise a single city into out. */
+  void city(int c, Segment out) {
+    out.empty = false;
+    out.first = c;
+    out.last = c;
+    out.travel = 0;
+    out.duration = service[c];
+    out.timeWarp = 0;
+    out.earliest = ready[c];
+    out.latest = due[c];
+    out.load = demand[c];
+    out.maxLoad = Math.max(0, demand[c]);
+    out.minLoad = Math.min(0, demand[c]);
+  }
+
+  /**
+   * A summary of part of a route: its travel cost, how long it takes, its
+   * time warp and the earliest and latest times it can start without more
+   * waiting or time warp, and its net load with the highest and lowest the
+   * load goes above or below where it started.
+   */
+  final class Segment {
+    boolean empty = true;
+    int first;
+    int last;
+    double travel;
+    double duration;
+    double timeWarp;
+    double earliest;
+    double latest;
+    double load;
+    double maxLoad;
+    double minLoad;
+
+    void clear() {
+      empty = true;
+    }
+
+    void set(Segment other) {
+      empty = other.empty;
+      first = other.first;
+      last = other.last;
+      travel = other.travel;
+      duration = other.duration;
+      timeWarp = other.timeWarp;
+      earliest = other.earliest;
+      latest = other.latest;
+      load = other.load;
+      maxLoad = other.maxLoad;
+      minLoad = other.minLoad;
+    }
+
+    /** Make this the summary of this part followed by next. */
+    void append(Segment next) {
+      if (next.empty) {
+        return;
+      }
+      if (empty) {
+        set(next);
+        return;
+      }
+      double t = travel(last, next.first);
+      double delta = duration - timeWarp + t;
+      double wait = Math.max(next.earliest - delta - latest, 0);
+      double warp = Math.max(earliest + delta - next.latest, 0);
+      travel += t + next.travel;
+      duration += next.duration + t + wait;
+      timeWarp += next.timeWarp + warp;
+      earliest = Math.max(next.earliest - delta, earliest) - wait;
+      latest = Math.min(next.latest - delta, latest) + warp;
+      maxLoad = Math.max(maxLoad, load + next.maxLoad);
+      minLoad = Math.min(minLoad, load + next.minLoad);
+      load += next.load;
+      last = next.last;
+    }
+
+    /** How far the load goes outside its limits, at worst. */
+    double excessLoad() {
+      return Math.max(0, initialLoad + maxLoad - capacity) + Math.max(0, -(initialLoad + minLoad));
+    }
+
+    double penalisedCost() {
+      return travel + TIME_WARP_PENALTY * timeWarp + LOAD_PENALTY * excessLoad();
+    }
+
+    boolean isFeasible() {
+      return timeWarp <= 0 && excessLoad() <= 0;
+    }
+  }
+}
+// vim: ts=2:sw=2
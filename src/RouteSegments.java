@@ -0,0 +1,227 @@
+/**
+ * The summaries of the parts of one tour under RouteConstraints, so that the
+ * penalised cost of the tour after inverting, swapping or moving part of it
+ * can be found in constant time instead of by going over the whole tour, as
+ * when improve() tries every move or a mutation picks the best of a few.
+ *
+ * The summaries are kept in a disjoint sparse table: at level k the tour is
+ * cut into blocks of 2^(k+1) positions, and each position holds the summary
+ * from it up to the middle of its block, or from the middle up to it. Any
+ * part of the tour is then the join of two entries, at the level of the
+ * highest bit in which its ends differ. A second table over the reversed
+ * tour gives the parts reversed. Building both takes O(n log n).
+ *
+ * Not thread-safe; each thread needs its own.
+ */
+final class RouteSegments {
+
+  /** Values kept for each entry, in the order of load()/store(). */
+  private static final int FIELDS = 8;
+
+  private final RouteConstraints constraints;
+
+  private int len;
+  private int[] tour;
+  private final Table forward = new Table();
+  private final Table backward = new Table();
+
+  // Scratch summaries
+  private final RouteConstraints.Segment result;
+  private final RouteConstraints.Segment part;
+
+  RouteSegments(RouteConstraints constraints) {
+    this.constraints = constraints;
+    result = constraints.new Segment();
+    part = constraints.new Segment();
+  }
+
+  /**
+   * Summarise a tour. The tour must not change until build() is called
+   * again.
+   */
+  void build(int[] tour) {
+    this.tour = tour;
+    len = tour.length;
+    forward.build(tour);
+    int[] reversed = backward.tour;
+    if (reversed == null || reversed.length != len) {
+      reversed = new int[len];
+    }
+    for (int i = 0; i < len; i++) {
+      reversed[i] = tour[len - 1 - i];
+    }
+    backward.build(reversed);
+  }
+
+  /** The penalised cost of the tour. */
+  double cost() {
+    result.clear();
+    forward.append(0, len - 1, result, part);
+    return result.penalisedCost();
+  }
+
+  /** The penalised cost of the tour after Operators.invert(tour, x, y). */
+  double invertCost(int x, int y) {
+    int i = Math.min(x, y);
+    int j = Math.max(x, y);
+    result.clear();
+    forward.append(0, i - 1, result, part);
+    backward.append(len - 1 - j, len - 1 - i, result, part);
+    forward.append(j + 1, len - 1, result, part);
+    return result.penalisedCost();
+  }
+
+  /** The penalised cost of the tour after Operators.swap(tour, x, y). */
+  double swapCost(int x, int y) {
+    int i = Math.min(x, y);
+    int j = Math.max(x, y);
+    if (i == j) {
+      return cost();
+    }
+    result.clear();
+    forward.append(0, i - 1, result, part);
+    forward.append(j, j, result, part);
+    forward.append(i + 1, j - 1, result, part);
+    forward.append(i, i, result, part);
+    forward.append(j + 1, len - 1, result, part);
+    return result.penalisedCost();
+  }
+
+  /** The penalised cost of the tour after Operators.move(tour, src, dest). */
+  double moveCost(int src, int dest) {
+    result.clear();
+    if (src < dest) {
+      forward.append(0, src - 1, result, part);
+      forward.append(src + 1, dest, result, part);
+      forward.append(src, src, result, part);
+      forward.append(dest + 1, len - 1, result, part);
+    } else {
+      forward.append(0, dest - 1, result, part);
+      forward.append(src, src, result, part);
+      forward.append(dest, src - 1, result, part);
+      forward.append(src + 1, len - 1, result, part);
+    }
+    return result.penalisedCost();
+  }
+
+  /**
+   * Improve a tour by inverting segments and moving cities until no such
+   * move lowers its penalised cost.
+   *
+   * @return The number of moves made.
+   */
+  int improve(int[] tour) {
+    build(tour);
+    double current = cost();
+    int moves = 0;
+    boolean improved = true;
+    while (improved) {
+      improved = false;
+      for (int i = 0; i < len - 1; i++) {
+        for (int j = i + 1; j < len; j++) {
+          double cost = invertCost(i, j);
+          if (cost < current - 1e-9) {
+            Operators.invert(tour, i, j);
+          } else if ((cost = moveCost(i, j)) < current - 1e-9) {
+            Operators.move(tour, i, j);
+          } else if ((cost = moveCost(j, i)) < current - 1e-9) {
+            Operators.move(tour, j, i);
+          } else {
+            continue;
+          }
+          build(tour);
+          current = cost;
+          moves++;
+          improved = true;
+        }
+      }
+    }
+    return moves;
+  }
+
+  /** A disjoint sparse table of summaries over one order of the cities. */
+  private class Table {
+    int[] tour;
+    int levels;
+    double[] data = new double[0];
+
+    void build(int[] order) {
+      tour = order;
+      int n = order.length;
+      levels = Math.max(1, 32 - Integer.numberOfLeadingZeros(n - 1));
+      if (data.length < levels * n * FIELDS) {
+        data = new double[levels * n * FIELDS];
+      }
+      RouteConstraints.Segment segment = constraints.new Segment();
+      RouteConstraints.Segment city = constraints.new Segment();
+      for (int k = 0; k < levels; k++) {
+        int half = 1 << k;
+        for (int start = 0; start + half < n; start += 2 * half) {
+          int mid = start + half;
+          // From each position up to the middle, built leftwards
+          segment.clear();
+          for (int i = mid - 1; i >= start; i--) {
+            constraints.city(order[i], city);
+            city.append(segment);
+            segment.set(city);
+            store(k, i, segment);
+          }
+          // From the middle up to each position
+          segment.clear();
+          for (int i = mid; i < Math.min(start + 2 * half, n); i++) {
+            constraints.city(order[i], city);
+            segment.append(city);
+            store(k, i, segment);
+          }
+        }
+      }
+    }
+
+    /** Append the summary of positions from..to, if any, to out. */
+    void append(int from, int to, RouteConstraints.Segment out,
+        RouteConstraints.Segment scratch) {
+      if (from > to) {
+        return;
+      }
+      if (from == to) {
+        constraints.city(tour[from], scratch);
+        out.append(scratch);
+        return;
+      }
+      int k = 31 - Integer.numberOfLeadingZeros(from ^ to);
+      int mid = (to >> k) << k;
+      load(k, from, tour[from], tour[mid - 1], scratch);
+      out.append(scratch);
+      load(k, to, tour[mid], tour[to], scratch);
+      out.append(scratch);
+    }
+
+    private void store(int k, int i, RouteConstraints.Segment segment) {
+      int at = (k * tour.length + i) * FIELDS;
+      data[at] = segment.travel;
+      data[at + 1] = segment.duration;
+      data[at + 2] = segment.timeWarp;
+      data[at + 3] = segment.earliest;
+      data[at + 4] = segment.latest;
+      data[at + 5] = segment.load;
+      data[at + 6] = segment.maxLoad;
+      data[at + 7] = segment.minLoad;
+    }
+
+    private void load(int k, int i, int first, int last, RouteConstraints.Segment out) {
+      int at = (k * tour.length + i) * FIELDS;
+      out.empty = false;
+      out.first = first;
+      out.last = last;
+      out.travel = data[at];
+      out.duration = data[at + 1];
+      out.timeWarp = data[at + 2];
+      out.earliest = data[at + 3];
+      out.latest = data[at + 4];
+      out.load = data[at + 5];
+      out.maxLoad = data[at + 6];
+      out.minLoad = data[at + 7];
+    }
+  }
+}
+// vim: ts=2:sw=2
@@ -0,0 +1,152 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lets other threads pause, resume and stop a run, and wait for it to end.
+ * The run checks in between generations with checkpoint(), which blocks while
+ * paused, so a paused run keeps all its state and uses no CPU.
+ *
+ * A run goes NEW -> RUNNING <-> PAUSED -> STOPPING -> STOPPED, or straight
+ * from RUNNING to STOPPED when it ends by itself. A stop requested before the
+ * run starts is kept, and the run then ends as soon as it starts.
+ */
+class RunControl {
+
+  enum State {
+    NEW, RUNNING, PAUSED, STOPPING, STOPPED
+  }
+
+  private final AtomicReference<State> state = new AtomicReference<State>(State.NEW);
+
+  /** Guards waiting for resume() and for the run to end. */
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+
+  State getState() {
+    return state.get();
+  }
+
+  /**
+   * Called by the run as it starts. A run that has ended can be started
+   * again.
+   *
+   * @return Whether to go ahead, or false if a stop was requested first.
+   * @throws IllegalStateException If the run is already going.
+   */
+  boolean start() {
+    while (true) {
+      State current = state.get();
+      switch (current) {
+        case NEW:
+        case STOPPED:
+          if (state.compareAndSet(current, State.RUNNING)) {
+            return true;
+          }
+          break;
+        case STOPPING:
+          finish();
+          return false;
+        default:
+          throw new IllegalStateException("Run is already " + current);
+      }
+    }
+  }
+
+  /**
+   * Called by the run between generations. Blocks while paused.
+   *
+   * @return Whether to carry on, or false if the run should stop.
+   */
+  boolean checkpoint() {
+    if (state.get() == State.RUNNING) {
+      return true;
+    }
+    lock.lock();
+    try {
+      while (state.get() == State.PAUSED) {
+        changed.awaitUninterruptibly();
+      }
+    } finally {
+      lock.unlock();
+    }
+    return state.get() == State.RUNNING;
+  }
+
+  /** Called by the run when it ends, however it ends. */
+  void finish() {
+    state.set(State.STOPPED);
+    signal();
+  }
+
+  /**
+   * Pause the run at its next checkpoint.
+   *
+   * @return Whether the run was running.
+   */
+  boolean pause() {
+    return state.compareAndSet(State.RUNNING, State.PAUSED);
+  }
+
+  /**
+   * Resume a paused run.
+   *
+   * @return Whether the run was paused.
+   */
+  boolean resume() {
+    if (state.compareAndSet(State.PAUSED, State.RUNNING)) {
+      signal();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Ask the run to stop at its next checkpoint, or as soon as it starts if it
+   * hasn't yet. A paused run is woken up to stop.
+   */
+  void stop() {
+    while (true) {
+      State current = state.get();
+      if (current == State.STOPPING || current == State.STOPPED) {
+        return;
+      }
+      if (state.compareAndSet(current, State.STOPPING)) {
+        signal();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Wait for the run to end.
+   *
+   * @return Whether it ended before the timeout.
+   */
+  boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    long remaining = unit.toNanos(timeout);
+    lock.lock();
+    try {
+      while (state.get() != State.STOPPED) {
+        if (remaining <= 0) {
+          return false;
+        }
+        remaining = changed.awaitNanos(remaining);
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void signal() {
+    lock.lock();
+    try {
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+}
+// vim: ts=2:sw=2
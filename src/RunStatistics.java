@@ -0,0 +1,100 @@
+/**
+ * Summary statistics of a stream of values (for example the costs of many
+ * runs) in constant memory: count, mean, variance, min/max, quantiles and a
+ * 95% confidence interval for the mean. Statistics gathered on different
+ * threads can be merged.
+ */
+class RunStatistics {
+
+  /** Two-sided 95% critical values of Student's t for 1..30 degrees of freedom. */
+  private static final double[] T_95 = {
+    12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+    2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+    2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042
+  };
+
+  private long count = 0;
+  private double mean = 0;
+  /** Sum of squared differences from the mean (Welford). */
+  private double m2 = 0;
+  private double min = Double.POSITIVE_INFINITY;
+  private double max = Double.NEGATIVE_INFINITY;
+
+  private final QuantileDigest quantiles = new QuantileDigest();
+
+  void add(double value) {
+    count++;
+    double delta = value - mean;
+    mean += delta / count;
+    m2 += delta * (value - mean);
+    min = Math.min(min, value);
+    max = Math.max(max, value);
+    quantiles.add(value);
+  }
+
+  /** Add everything in another set of statistics to this one. */
+  void merge(RunStatistics other) {
+    if (other.count == 0) {
+      return;
+    }
+    long total = count + other.count;
+    double delta = other.mean - mean;
+    mean += delta * other.count / total;
+    m2 += other.m2 + delta * delta * count * other.count / total;
+    count = total;
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+    quantiles.merge(other.quantiles);
+  }
+
+  long getCount() {
+    return count;
+  }
+
+  double getMean() {
+    return count > 0 ? mean : Double.NaN;
+  }
+
+  /** Get the sample variance. */
+  double getVariance() {
+    return count > 1 ? m2 / (count - 1) : Double.NaN;
+  }
+
+  double getStdDev() {
+    return Math.sqrt(getVariance());
+  }
+
+  double getMin() {
+    return min;
+  }
+
+  double getMax() {
+    return max;
+  }
+
+  /** Estimate the qth quantile, e.g. 0.5 for the median. */
+  double getQuantile(double q) {
+    return quantiles.quantile(q);
+  }
+
+  /**
+   * Get the half-width of the 95% confidence interval for the mean, i.e. the
+   * mean is getMean() +/- this.
+   */
+  double getConfidence95() {
+    if (count < 2) {
+      return Double.NaN;
+    }
+    long df = count - 1;
+    double t = df <= T_95.length ? T_95[(int) df - 1] : 1.96;
+    return t * getStdDev() / Math.sqrt(count);
+  }
+
+  @Override
+  public String toString() {
+    return "n=" + count + " mean=" + getMean() + " +/- " + getConfidence95()
+        + " sd=" + getStdDev() + " min=" + min + " p50=" + getQuantile(0.5)
+        + " p90=" + getQuantile(0.9) + " max=" + max;
+  }
+}
+// vim: ts=2:sw=2
@@ -1,4 +1,5 @@
 import java.text.NumberFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -8,7 +9,17 @@ import java.util.List;
 import java.util.Queue;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class Simulation {
 
@@ -21,25 +32,189 @@ public class Simulation {
   private static final int HISTORY_SIZE = 200;
   private static boolean DETECT_CONVERGENCE = false;
 
+  /**
+   * Number of tour costs remembered so that repeated children need not be
+   * costed again.
+   */
+  private static final int FITNESS_CACHE_SIZE = 1 << 14;
+
+  /**
+   * Whether to throw away children whose tour is already in the population.
+   */
+  private static boolean REJECT_DUPLICATES = false;
+
+  /**
+   * Whether to run a steady-state GA, where each child immediately replaces
+   * the worst individual if it is better, instead of a generational one. A
+   * "generation" is then parentPoolSize children.
+   */
+  private static boolean STEADY_STATE = false;
+
+  /** Number of individuals competing to be each parent in steady-state mode. */
+  private static final int TOURNAMENT_SIZE = 3;
+
+  /**
+   * Whether to restart the population, keeping its elites, when the best cost
+   * hasn't improved for STAGNATION_GENERATIONS generations.
+   */
+  private static boolean RESTART_ON_STAGNATION = false;
+  private static final int STAGNATION_GENERATIONS = 50;
+
+  /**
+   * Chance that a child is improved by LinKernighan local search before it
+   * joins the population, which makes this a memetic algorithm.
+   */
+  private static float LOCAL_SEARCH_RATE = 0f;
+
+  /**
+   * With RouteConstraints, the number of random mutations whose cost is
+   * checked before making the cheapest.
+   */
+  private static final int CONSTRAINED_MUTATION_TRIES = 8;
+
+  /**
+   * Whether to compute a lower bound on the tour cost at the start of each
+   * run, so that the gap to it can be reported.
+   */
+  private static boolean COMPUTE_LOWER_BOUND = false;
+
+  /**
+   * Number of threads making each generation's children. With more than one
+   * the pairs of parents are shared out between them, each thread with its
+   * own operators, while the simulation thread waits.
+   */
+  private static int BREEDING_THREADS = 1;
+
+  /**
+   * Whether each pair of children is made with a random generator seeded from
+   * the run's seed, the generation and the pair. A run given a seed with
+   * setSeed() then turns out the same however many threads make its children.
+   */
+  private static boolean DETERMINISTIC = false;
+
+  /**
+   * Whether status updates are formatted and passed to the listener on a
+   * thread of their own, so the next generation needn't wait for them.
+   * Generation updates are dropped if the listener is STATUS_QUEUE_SIZE behind.
+   */
+  private static boolean ASYNC_STATUS = false;
+  private static final int STATUS_QUEUE_SIZE = 64;
+
+  /** The crossover operators that can be used. */
+  public enum CrossoverType {
+    EDGE_RECOMBINATION, ORDER, PARTITION
+  }
+
+  /** The mutation operators that can be used. */
+  public enum MutationType {
+    INVERT, SWAP
+  }
+
   private Listener listener;
+  private GenerationHook generationHook;
 
-  private boolean stop = false;
+  private final RunControl control = new RunControl();
+
+  private CrossoverType crossoverType = CrossoverType.EDGE_RECOMBINATION;
+  private MutationType mutationType = MutationType.INVERT;
 
   private final int cityCount;
   private final int populationSize;
   private final int parentPoolSize;
 
   private final City[] cities;
+  /** Whether cities are randomly placed at the start of each run. */
+  private final boolean generateCities;
   private final Chromosome[] chromosomes;
 
+  /** The cities and their precomputed data; rebuilt if cities are generated. */
+  private Instance instance;
+  private FitnessEvaluator evaluator;
+  private PopulationRestart restart;
+
+  /** One per breeding thread; the first also serves steady-state mode. */
+  private Breeder[] breeders;
+  private ExecutorService breedingPool;
+
+  /**
+   * The pairs of parents of the current generation and their children. The
+   * children are made in the city lists of chromosomes taken from spares.
+   */
+  private Chromosome[] firstParents = new Chromosome[0];
+  private Chromosome[] secondParents = new Chromosome[0];
+  private Chromosome[] children = new Chromosome[0];
+  private long[] childHashes = new long[0];
+
+  /**
+   * Chromosomes that lost their place in the population. Their city lists are
+   * written over with the next generation's children, so that a large
+   * population doesn't allocate, and leave the collector to trace and copy,
+   * two new tours per pair every generation.
+   */
+  private final ArrayDeque<Chromosome> spares = new ArrayDeque<Chromosome>();
+
+  /** Passes status updates to the listener in ASYNC_STATUS mode. */
+  private StatusReporter reporter;
+  private final NumberFormat intf = integerFormat();
+  private final NumberFormat doubf = decimalFormat();
+
+  /**
+   * The children produced in the current generation, costed together once
+   * they have all been created.
+   */
+  private Chromosome[] offspring = new Chromosome[0];
+
+  private final FitnessCache fitnessCache = new FitnessCache(FITNESS_CACHE_SIZE);
+
+  /**
+   * Whether to use the fitness cache and reject duplicates. TourHash ignores
+   * direction, so both are only used when tours cost the same either way
+   * round.
+   */
+  private boolean cacheCosts;
+  private boolean rejectDuplicates;
+
+  /** The hashes of the tours in the population, used to reject duplicates. */
+  private final Set<Long> populationHashes = new HashSet<Long>();
+
+  /**
+   * The best tour found so far. Only replaced when a better tour is found, so
+   * readers on other threads always see a complete tour.
+   */
+  private final AtomicReference<TourSnapshot> bestTour = new AtomicReference<TourSnapshot>();
+
+  private final PhaseProfiler profiler = new PhaseProfiler();
+
+  /** Steady-state mode: costs of the population and the best slot. */
+  private IndexedHeap worstHeap;
+  private int bestSlot;
+  private int[] childBuffer;
+
+  /** Where to record the best cost of each generation, if anywhere. */
+  private ResultWriter resultWriter;
+  private int runId;
+
   // Per-simulation random generator
-  private final Random rand = new Random(System.currentTimeMillis());
+  private long seed = System.currentTimeMillis();
+  private final Random rand = new Random(seed);
 
   /**
    * The cost at GENERATIONS generations; the simulation keeps going, but this value is recorded.
    */
   private Double endCost;
 
+  /** The last generation to run. */
+  private int maxGenerations = GENERATIONS;
+
+  /** The System.nanoTime() at which to stop, if any. */
+  private Long deadline;
+
+  /** Tours to start from instead of random ones, if any. */
+  private int[][] initialTours;
+
+  /** Stop once the gap to the lower bound is this small, if set. */
+  private Double targetGap;
+
   public Simulation(int cityCount, int populationSize, int parentPoolSize) {
     this.cityCount = cityCount;
     this.populationSize = populationSize;
@@ -47,10 +222,72 @@ public class Simulation {
 
     cities = new City[cityCount];
     chromosomes = new Chromosome[populationSize];
+    generateCities = true;
+  }
+
+  /**
+   * Create a simulation over a given set of cities rather than random ones.
+   * The cities are not modified, so several simulations can share them.
+   */
+  public Simulation(City[] cities, int populationSize, int parentPoolSize) {
+    this.cityCount = cities.length;
+    this.populationSize = populationSize;
+    this.parentPoolSize = parentPoolSize;
+
+    this.cities = cities;
+    chromosomes = new Chromosome[populationSize];
+    generateCities = false;
+  }
+
+  /**
+   * Create a simulation over an instance, reusing its precomputed data. The
+   * instance can be shared with other simulations.
+   */
+  public Simulation(Instance instance, int populationSize, int parentPoolSize) {
+    this(instance.getCities(), populationSize, parentPoolSize);
+    this.instance = instance;
   }
 
+  /**
+   * Run the simulation on this thread until it finishes or is stopped.
+   *
+   * @throws IllegalStateException If the simulation is already running.
+   */
   public RunResult simulate() {
+    if (!control.start()) {
+      return new RunResult();
+    }
+    try {
+      return run();
+    } finally {
+      endRun();
+      control.finish();
+    }
+  }
+
+  private RunResult run() {
+    bestTour.set(null);
     initializeCitiesAndChromosomes();
+    publishBestTour(chromosomes[0], 0);
+    if (STEADY_STATE) {
+      initializeSteadyState();
+    }
+    if (breeders.length > 1) {
+      breedingPool = Executors.newFixedThreadPool(breeders.length, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "Simulation-breeder");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    if (ASYNC_STATUS && listener != null) {
+      reporter = new StatusReporter();
+      Thread thread = new Thread(reporter, "Simulation-status");
+      thread.setDaemon(true);
+      thread.start();
+    }
 
     // Initialize data structures for GA and stats
     Set<Integer> parentPool = new HashSet<Integer>();
@@ -58,36 +295,71 @@ public class Simulation {
     Queue<Double> convergenceHistory = new LinkedList<Double>();
     Queue<Long> timingHistory = new LinkedList<Long>();
 
-    EdgeRecombinationCrossover edgeRecombination = new EdgeRecombinationCrossover(cityCount, rand);
-
     long genStartTime = -1;
     RunResult result = new RunResult();
 
-    NumberFormat doubf = NumberFormat.getInstance();
-    doubf.setMinimumFractionDigits(0);
-    doubf.setMaximumFractionDigits(2);
-    NumberFormat intf = NumberFormat.getInstance();
-    intf.setMaximumFractionDigits(0);
-    intf.setGroupingUsed(false);
-
     setStatus("Simulation starting up...");
 
+    if (COMPUTE_LOWER_BOUND || targetGap != null) {
+      setStatus("Computing lower bound...");
+      LowerBound bound = new LowerBound(instance);
+      result.lowerBound = bound.compute();
+      result.lowerBoundExact = bound.isExact();
+    }
+
+    double stagnantCost = chromosomes[0].getCost();
+    int lastImprovement = 0;
+
     int generation = 0;
-    for (; generation <= GENERATIONS; generation++) {
-      // Stop if we've been asked to
-      if(stop) {
-        stop = false;
+    for (; generation <= maxGenerations; generation++) {
+      // Stop if we've been asked to, waiting here while paused
+      if (!control.checkpoint()) {
+        return result;
+      }
+      // or are out of time
+      if (deadline != null && System.nanoTime() - deadline >= 0) {
         return result;
       }
 
       // Record the start
-      genStartTime = System.currentTimeMillis();
+      genStartTime = System.nanoTime();
 
-      evolve(parentPool, childPool, edgeRecombination);
+      Chromosome best;
+      if (STEADY_STATE) {
+        for (int i = 0; i < parentPoolSize; i++) {
+          evolveSteadyState();
+        }
+        profiler.endGeneration();
+        best = chromosomes[bestSlot];
+      } else {
+        evolve(parentPool, childPool, generation);
 
-      // Sort the new list of chromosomes
-      Arrays.sort(chromosomes);
-      result.cost = chromosomes[0].getCost();
+        // Sort the new list of chromosomes
+        long t = profiler.mark();
+        Arrays.sort(chromosomes);
+        profiler.lap(PhaseProfiler.Phase.SORT, t);
+        profiler.endGeneration();
+        best = chromosomes[0];
+      }
+      if (generationHook != null) {
+        generationHook.afterGeneration(this, generation);
+        best = STEADY_STATE ? chromosomes[bestSlot] : chromosomes[0];
+      }
+      result.cost = best.getCost();
+      publishBestTour(best, generation);
+      if (result.lowerBound > 0) {
+        result.gap = LowerBound.gap(result.cost, result.lowerBound);
+      }
+
+      if (RESTART_ON_STAGNATION) {
+        if (result.cost < stagnantCost) {
+          stagnantCost = result.cost;
+          lastImprovement = generation;
+        } else if (generation - lastImprovement >= STAGNATION_GENERATIONS) {
+          restartPopulation();
+          lastImprovement = generation;
+        }
+      }
 
       if(DETECT_CONVERGENCE) {
         //convergence detection
@@ -121,11 +393,12 @@ public class Simulation {
       }
 
 
-      // Print CSV to stdout
-      //System.out.print(chromosomes[0].getCost() + ", ");
+      if (resultWriter != null) {
+        resultWriter.append(runId, generation, result.cost);
+      }
 
       //evolution rate calculation
-      long currentGenTime = System.currentTimeMillis() - genStartTime;
+      long currentGenTime = System.nanoTime() - genStartTime;
       if(timingHistory.size() == HISTORY_SIZE) {
         timingHistory.remove();
       }
@@ -134,17 +407,20 @@ public class Simulation {
       for (double i : timingHistory) {
         sum += i;
       }
-      result.rate = (timingHistory.size() * 1000.0) / sum;
+      result.rate = (timingHistory.size() * 1000000000.0) / sum;
 
       if(generation == 1000) {
         endCost = result.cost;
       }
-      if(endCost != null) {
-        setStatus("Generation " + generation + " Cost " + intf.format(result.cost)
-            + " Rate " + doubf.format(result.rate) + " Cost at 1000: " + intf.format(endCost));
-      } else {
-        setStatus("Generation " + generation + " Cost " + intf.format(result.cost) + " Rate "
-            + doubf.format(result.rate));
+      report(new Status(generation, result, endCost));
+
+      // An estimated bound might be above the optimum, and then no gap is
+      // ever reached
+      if (targetGap != null && result.lowerBoundExact && result.lowerBound > 0
+          && result.gap <= targetGap) {
+        setStatus("Reached a gap of " + doubf.format(result.gap * 100) + "% at generation "
+            + generation + " with cost " + intf.format(result.cost));
+        break;
       }
     }
     return result;
@@ -158,18 +434,82 @@ public class Simulation {
     return chromosomes;
   }
 
+  /**
+   * Get the best tour found so far. Unlike getChromosomes() this is safe to
+   * call from any thread.
+   *
+   * @return The best tour or null if the simulation hasn't started.
+   */
+  public TourSnapshot getBestTour() {
+    return bestTour.get();
+  }
+
+  /**
+   * Get the profiler that times the phases of each generation. It is off
+   * until enabled and may be switched on or off while running.
+   */
+  public PhaseProfiler getProfiler() {
+    return profiler;
+  }
+
+  /** Publish the best chromosome if it beats the current best tour. */
+  private void publishBestTour(Chromosome best, int generation) {
+    TourSnapshot current = bestTour.get();
+    if (current == null || best.getCost() < current.getCost()) {
+      bestTour.set(new TourSnapshot(cities, best.getCityList(), best.getCost(), generation));
+    }
+  }
+
   private void initializeCitiesAndChromosomes() {
-    for (int i = 0; i < cityCount; i++) {
-      cities[i] = new City(rand.nextDouble(), rand.nextDouble());
+    if (generateCities) {
+      for (int i = 0; i < cityCount; i++) {
+        cities[i] = new City(rand.nextDouble(), rand.nextDouble());
+      }
+    }
+    if (generateCities || instance == null) {
+      instance = new Instance(cities);
+    }
+    evaluator = instance.getEvaluator();
+    cacheCosts = instance.isSymmetric();
+    rejectDuplicates = REJECT_DUPLICATES && cacheCosts;
+    restart = null;
+    spares.clear();
+    int seeded = 0;
+    if (initialTours != null) {
+      for (int[] tour : initialTours) {
+        if (seeded < populationSize && isTour(tour)) {
+          Chromosome chromosome = new Chromosome(tour.clone());
+          chromosome.cost = evaluator.cost(tour);
+          chromosomes[seeded++] = chromosome;
+        }
+      }
     }
-    for (int i = 0; i < populationSize; i++) {
+    for (int i = seeded; i < populationSize; i++) {
       chromosomes[i] = new Chromosome(cities, rand);
+      if (instance.getCosts() != null || instance.getConstraints() != null) {
+        chromosomes[i].cost = evaluator.cost(chromosomes[i].getCityList());
+      }
     }
     Arrays.sort(chromosomes);
+
+    int threads = STEADY_STATE ? 1 : BREEDING_THREADS;
+    breeders = new Breeder[threads];
+    for (int i = 0; i < threads; i++) {
+      Random breederRand;
+      if (DETERMINISTIC) {
+        // Reseeded for each pair, but steady-state mode makes no pairs and
+        // mustn't repeat the selection generator's stream
+        breederRand = new Random(pairSeed(-1, i));
+      } else if (threads == 1) {
+        breederRand = rand;
+      } else {
+        breederRand = new Random(rand.nextLong());
+      }
+      breeders[i] = new Breeder(breederRand, threads == 1);
+    }
   }
 
-  private void evolve(Set<Integer> parentPool, List<Chromosome> childPool,
-      EdgeRecombinationCrossover edgeRecombination) {
+  private void evolve(Set<Integer> parentPool, List<Chromosome> childPool, int generation) {
 
     // Linear selection
     final int n = populationSize;
@@ -179,6 +519,7 @@ public class Simulation {
     final float nDiff = nPlus - nMinus;
 
     // Select chromsomes for the parent pool
+    long t = profiler.mark();
     parentPool.clear();
     while (parentPool.size() < parentPoolSize) {
       for (int i = 1; i <= n; i++) {
@@ -189,61 +530,78 @@ public class Simulation {
       }
     }
 
-    // Iterate through parent pool, choose pairs and perform crossover/mutation
-    childPool.clear();
+    t = profiler.lap(PhaseProfiler.Phase.SELECTION, t);
+
+    // Iterate through parent pool and choose pairs
+    int pairs = parentPool.size() / 2;
+    if (firstParents.length < pairs) {
+      firstParents = new Chromosome[pairs];
+      secondParents = new Chromosome[pairs];
+      children = new Chromosome[pairs * 2];
+      childHashes = new long[pairs * 2];
+    }
     Chromosome parent1 = null;
+    int pair = 0;
     for (Integer index : parentPool) {
       if (parent1 == null) {
         parent1 = chromosomes[index];
       } else {
-        Chromosome parent2 = chromosomes[index];
-
-        // Preform crossover
-        int[] p1 = parent1.getCityList();
-        int[] p2 = parent2.getCityList();
-
-        /*
-         * EDGE RECOMBINATION
-         * Comment to disable edge recombination
-         */
-        int[] c1 = edgeRecombination.crossover(p1, p2);
-        int[] c2 = edgeRecombination.crossover(p2, p1);
-        /* EDGE RECOMBINATION */
-
-        /*
-         * ORDER CROSSOVER (OX-1)
-         * Uncomment to enable
-         *
-        int len = p1.length;
-        int startPos = rand.nextInt(len);
-        int endPos = rand.nextInt(len);
-        if (startPos > endPos) {
-          int tmp = startPos;
-          startPos = endPos;
-          endPos = tmp;
-        }
-        int[] c1 = Operators.orderCrossover(p1, p2, startPos, endPos);
-        int[] c2 = Operators.orderCrossover(p2, p1, startPos, endPos);
-        /* ORDER CROSSOVER */
-
-        mutate(c1);
-        mutate(c2);
+        firstParents[pair] = parent1;
+        secondParents[pair++] = chromosomes[index];
+        parent1 = null;
+      }
+    }
+    for (int i = 0; i < pairs * 2; i++) {
+      Chromosome spare = spares.poll();
+      children[i] = spare != null ? spare : new Chromosome(new int[cityCount], 0);
+    }
 
-        Chromosome child1 = new Chromosome(c1);
-        Chromosome child2 = new Chromosome(c2);
+    // Perform crossover/mutation
+    if (!breed(pairs, generation)) {
+      return;
+    }
+    if (breedingPool != null) {
+      t = profiler.lap(PhaseProfiler.Phase.CROSSOVER, t);
+    } else {
+      t = profiler.mark();
+    }
 
-        child1.calculateCost(cities);
-        child2.calculateCost(cities);
+    // Add children and parents to pool
+    childPool.clear();
+    if (offspring.length < parentPool.size()) {
+      offspring = new Chromosome[parentPool.size()];
+    }
+    int offspringCount = 0;
+    if (rejectDuplicates) {
+      populationHashes.clear();
+      for (Chromosome chromosome : chromosomes) {
+        populationHashes.add(chromosome.getHash());
+      }
+    }
+    for (int i = 0; i < pairs; i++) {
+      Chromosome child1 = children[2 * i];
+      Chromosome child2 = children[2 * i + 1];
+      child1.hash = childHashes[2 * i];
+      child2.hash = childHashes[2 * i + 1];
+      children[2 * i] = null;
+      children[2 * i + 1] = null;
 
-        // Add children and parents to pool
-        childPool.add(child1);
-        childPool.add(child2);
-        childPool.add(parent1);
-        childPool.add(parent2);
+      offspringCount = addChild(child1, childPool, offspringCount);
+      offspringCount = addChild(child2, childPool, offspringCount);
+      childPool.add(firstParents[i]);
+      childPool.add(secondParents[i]);
+    }
+    // An unpaired parent competes for its own place
+    if (parent1 != null) {
+      childPool.add(parent1);
+    }
 
-        parent1 = null;
-      }
+    // Cost all the new children in one go
+    evaluator.evaluate(offspring, offspringCount);
+    for (int i = 0; cacheCosts && i < offspringCount; i++) {
+      fitnessCache.put(offspring[i].getHash(), offspring[i].getCost());
     }
+    t = profiler.lap(PhaseProfiler.Phase.FITNESS, t);
 
     // Sort children and replace parents where children better
     Collections.sort(childPool);
@@ -251,50 +609,580 @@ public class Simulation {
     for (Integer index : parentPool) {
       chromosomes[index] = childPool.get(pos++);
     }
+    while (pos < childPool.size()) {
+      spares.add(childPool.get(pos++));
+    }
+    profiler.lap(PhaseProfiler.Phase.REPLACEMENT, t);
+  }
+
+  /**
+   * Make the children of the first pairs in firstParents and secondParents,
+   * on the breeding threads if there are any.
+   *
+   * @return Whether all the children were made, or false if interrupted.
+   */
+  private boolean breed(int pairs, int generation) {
+    if (breedingPool == null) {
+      for (int pair = 0; pair < pairs; pair++) {
+        breeders[0].breed(pair, generation);
+      }
+      return true;
+    }
+    int threads = breeders.length;
+    for (int i = 0; i < threads; i++) {
+      breeders[i].from = pairs * i / threads;
+      breeders[i].to = pairs * (i + 1) / threads;
+      breeders[i].generation = generation;
+    }
+    try {
+      for (Future<Void> future : breedingPool.invokeAll(Arrays.asList(breeders))) {
+        future.get();
+      }
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      control.stop();
+      return false;
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /** Shut down the threads started for a run. */
+  private void endRun() {
+    if (breedingPool != null) {
+      breedingPool.shutdownNow();
+      breedingPool = null;
+    }
+    if (reporter != null) {
+      reporter.put(Status.END);
+      reporter = null;
+    }
+  }
+
+  private void initializeSteadyState() {
+    if (worstHeap == null) {
+      worstHeap = new IndexedHeap(populationSize);
+      childBuffer = new int[cityCount];
+    }
+    worstHeap.build(chromosomes);
+    bestSlot = 0; // Still sorted from initialization or restart
+    populationHashes.clear();
+    for (Chromosome chromosome : chromosomes) {
+      populationHashes.add(chromosome.getHash());
+    }
+  }
+
+  /**
+   * Produce one child and, if it is better than the worst individual, put it
+   * in the worst individual's place. The population is never sorted and no
+   * chromosomes are allocated: the child is built in childBuffer and copied
+   * into the replaced chromosome's city list.
+   */
+  private void evolveSteadyState() {
+    long t = profiler.mark();
+    Chromosome parent1 = chromosomes[tournament()];
+    Chromosome parent2 = chromosomes[tournament()];
+    t = profiler.lap(PhaseProfiler.Phase.SELECTION, t);
+
+    Breeder breeder = breeders[0];
+    breeder.crossover(parent1.getCityList(), parent2.getCityList(), childBuffer);
+    t = profiler.lap(PhaseProfiler.Phase.CROSSOVER, t);
+
+    long hash = breeder.localSearch(childBuffer,
+        breeder.mutate(childBuffer, TourHash.of(childBuffer)));
+    t = profiler.lap(PhaseProfiler.Phase.MUTATION, t);
+
+    if (rejectDuplicates && populationHashes.contains(hash)) {
+      profiler.lap(PhaseProfiler.Phase.FITNESS, t);
+      return;
+    }
+    Double cached = cacheCosts ? fitnessCache.get(hash) : null;
+    double cost;
+    if (cached != null) {
+      cost = cached;
+    } else {
+      cost = evaluator.cost(childBuffer);
+      if (cacheCosts) {
+        fitnessCache.put(hash, cost);
+      }
+    }
+    t = profiler.lap(PhaseProfiler.Phase.FITNESS, t);
+
+    if (cost < worstHeap.worstCost()) {
+      int slot = worstHeap.worst();
+      Chromosome replaced = chromosomes[slot];
+      populationHashes.remove(replaced.getHash());
+      replaced.setCities(childBuffer);
+      replaced.cost = cost;
+      populationHashes.add(hash);
+      worstHeap.update(slot, cost);
+      if (cost < chromosomes[bestSlot].getCost()) {
+        bestSlot = slot;
+      }
+    }
+    profiler.lap(PhaseProfiler.Phase.REPLACEMENT, t);
+  }
+
+  /**
+   * Replace all but the elites with kicked copies of them and new
+   * nearest-neighbour tours. See PopulationRestart.
+   */
+  private void restartPopulation() {
+    if (restart == null) {
+      restart = new PopulationRestart(instance, rand);
+    }
+    if (STEADY_STATE) {
+      Arrays.sort(chromosomes);
+      restart.restart(chromosomes);
+      Arrays.sort(chromosomes);
+      initializeSteadyState();
+    } else {
+      restart.restart(chromosomes);
+      Arrays.sort(chromosomes);
+    }
+  }
+
+  /** Pick the best of TOURNAMENT_SIZE random individuals. */
+  private int tournament() {
+    int winner = rand.nextInt(populationSize);
+    for (int i = 1; i < TOURNAMENT_SIZE; i++) {
+      int challenger = rand.nextInt(populationSize);
+      if (chromosomes[challenger].getCost() < chromosomes[winner].getCost()) {
+        winner = challenger;
+      }
+    }
+    return winner;
+  }
+
+  /**
+   * Add a child to the child pool unless it is a rejected duplicate. The cost
+   * is taken from the fitness cache if possible, otherwise the child is queued
+   * in offspring to be costed.
+   *
+   * @return The new number of children queued in offspring.
+   */
+  private int addChild(Chromosome child, List<Chromosome> childPool, int offspringCount) {
+    if (rejectDuplicates && !populationHashes.add(child.getHash())) {
+      spares.add(child);
+      return offspringCount;
+    }
+    Double cost = cacheCosts ? fitnessCache.get(child.getHash()) : null;
+    if (cost != null) {
+      child.cost = cost;
+    } else {
+      offspring[offspringCount++] = child;
+    }
+    childPool.add(child);
+    return offspringCount;
   }
 
-  private void mutate(int[] child) {
-    if (rand.nextFloat() <= CHANCE_MUTATION) {
-      int len = child.length;
-      /*
-       * SWAP MUTATOR
-       * Uncomment to enable swap mutator
-       *
-      int startPos = rand.nextInt(len);
-      int endPos = rand.nextInt(len);
-      Operators.swap(child, startPos, endPos);
-
-      /*
-       * INVERT MUTATOR
-       * Comment to disable invert mutator
-       */
-      int startPos = rand.nextInt(len);
-      int endPos = rand.nextInt(len);
-      Operators.invert(child, startPos, endPos);
-      /*
-         multi-swap mutation
-        int len = cityList.length;
-        int x = RNG.nextInt(len);
-        int y = RNG.nextInt(len);
-        int z = RNG.nextInt(len);
-
-        int a = Math.min(x, Math.min(y, z));
-        int c = Math.max(x, Math.max(y, z));
-        int b = Math.min(Math.max(x,y), Math.min(Math.max(y,z), Math.max(x,z)));
-
-        Integer intEnd = null;
-        Integer dest = null;
-        if(RNG.nextBoolean()) {
-          Operators.multiMove(cityList, a, b, c);
+  /**
+   * Makes children from pairs of parents. Each breeding thread has its own,
+   * as the operators keep scratch space, and its own random generator.
+   */
+  private class Breeder implements Callable<Void> {
+    private final Random rand;
+    private final EdgeRecombinationCrossover edgeRecombination;
+    private final PartitionCrossover partitionCrossover;
+    private final CrossoverType crossover;
+    private final MutationType mutation;
+    private LinKernighan localSearch;
+    private RouteSegments segments;
+
+    /** Whether to time crossover and mutation; only on the simulation thread. */
+    private final boolean timed;
+
+    /** The pairs to make children of when called, and their generation. */
+    int from;
+    int to;
+    int generation;
+
+    Breeder(Random rand, boolean timed) {
+      this.rand = rand;
+      this.timed = timed;
+      // Partition crossover, undirected edges and inversion assume tours cost
+      // the same either way round
+      boolean symmetric = instance.isSymmetric();
+      crossover = symmetric || crossoverType != CrossoverType.PARTITION
+          ? crossoverType : CrossoverType.EDGE_RECOMBINATION;
+      mutation = symmetric ? mutationType : MutationType.SWAP;
+      edgeRecombination = new EdgeRecombinationCrossover(cityCount, rand, !symmetric);
+      partitionCrossover = new PartitionCrossover(evaluator);
+    }
+
+    @Override
+    public Void call() {
+      for (int pair = from; pair < to; pair++) {
+        breed(pair, generation);
+      }
+      return null;
+    }
+
+    /**
+     * Make the children of firstParents[pair] and secondParents[pair] in the
+     * city lists of children[2 * pair] and children[2 * pair + 1], and their
+     * hashes in childHashes.
+     */
+    void breed(int pair, int generation) {
+      if (DETERMINISTIC) {
+        rand.setSeed(pairSeed(generation, pair));
+        edgeRecombination.reset();
+      }
+      long t = timed ? profiler.mark() : 0;
+
+      // Preform crossover
+      int[] p1 = firstParents[pair].getCityList();
+      int[] p2 = secondParents[pair].getCityList();
+
+      int[] c1 = children[2 * pair].getCityList();
+      int[] c2 = children[2 * pair + 1].getCityList();
+      switch (crossover) {
+        case ORDER:
+          // ORDER CROSSOVER (OX-1), cut in the same place for both children
+          int len = p1.length;
+          int startPos = rand.nextInt(len);
+          int endPos = rand.nextInt(len);
+          if (startPos > endPos) {
+            int tmp = startPos;
+            startPos = endPos;
+            endPos = tmp;
+          }
+          System.arraycopy(Operators.orderCrossover(p1, p2, startPos, endPos), 0, c1, 0, len);
+          System.arraycopy(Operators.orderCrossover(p2, p1, startPos, endPos), 0, c2, 0, len);
+          break;
+        case PARTITION:
+          // PARTITION CROSSOVER (GPX) gives a single child so the second is
+          // made with edge recombination
+          System.arraycopy(partitionCrossover.crossover(p1, p2), 0, c1, 0, c1.length);
+          edgeRecombination.crossover(p2, p1, c2);
+          break;
+        default:
+          // EDGE RECOMBINATION
+          edgeRecombination.crossover(p1, p2, c1);
+          edgeRecombination.crossover(p2, p1, c2);
+          break;
+      }
+      if (timed) {
+        t = profiler.lap(PhaseProfiler.Phase.CROSSOVER, t);
+      }
+
+      childHashes[2 * pair] = localSearch(c1, mutate(c1, TourHash.of(c1)));
+      childHashes[2 * pair + 1] = localSearch(c2, mutate(c2, TourHash.of(c2)));
+      if (timed) {
+        profiler.lap(PhaseProfiler.Phase.MUTATION, t);
+      }
+    }
+
+    /** Make a single child into child, for steady-state mode. */
+    void crossover(int[] p1, int[] p2, int[] child) {
+      switch (crossover) {
+        case ORDER:
+          int startPos = rand.nextInt(p1.length);
+          int endPos = rand.nextInt(p1.length);
+          int[] ordered = Operators.orderCrossover(p1, p2, Math.min(startPos, endPos),
+              Math.max(startPos, endPos));
+          System.arraycopy(ordered, 0, child, 0, ordered.length);
+          break;
+        case PARTITION:
+          int[] partitioned = partitionCrossover.crossover(p1, p2);
+          System.arraycopy(partitioned, 0, child, 0, partitioned.length);
+          break;
+        default:
+          edgeRecombination.crossover(p1, p2, child);
+          break;
+      }
+    }
+
+    /**
+     * Possibly improve the child with local search.
+     *
+     * @param hash The TourHash of the child before local search.
+     * @return The TourHash of the child after local search.
+     */
+    long localSearch(int[] child, long hash) {
+      if (LOCAL_SEARCH_RATE > 0 && rand.nextFloat() < LOCAL_SEARCH_RATE) {
+        if (instance.getConstraints() != null) {
+          if (segments().improve(child) > 0) {
+            hash = TourHash.of(child);
+          }
+          return hash;
+        }
+        if (!instance.isSymmetric()) {
+          // Lin-Kernighan assumes symmetric costs
+          if (instance.getCosts().improve(child) > 0) {
+            hash = TourHash.of(child);
+          }
+          return hash;
+        }
+        if (localSearch == null) {
+          localSearch = new LinKernighan(instance, rand);
+        }
+        if (localSearch.improve(child, null) > 0) {
+          hash = TourHash.of(child);
+        }
+      }
+      return hash;
+    }
+
+    /**
+     * Possibly mutate the child.
+     *
+     * @param hash The TourHash of the child before mutation.
+     * @return The TourHash of the child after mutation.
+     */
+    long mutate(int[] child, long hash) {
+      if (rand.nextFloat() <= CHANCE_MUTATION) {
+        int len = child.length;
+        int startPos = rand.nextInt(len);
+        int endPos = rand.nextInt(len);
+        if (instance.getConstraints() != null) {
+          // Make whichever of a few mutations breaks the constraints least,
+          // pricing each in constant time from one summary of the child
+          segments().build(child);
+          double best = mutationCost(startPos, endPos);
+          for (int i = 1; i < CONSTRAINED_MUTATION_TRIES; i++) {
+            int x = rand.nextInt(len);
+            int y = rand.nextInt(len);
+            double cost = mutationCost(x, y);
+            if (cost < best) {
+              best = cost;
+              startPos = x;
+              endPos = y;
+            }
+          }
+        }
+        int from = Math.min(startPos, endPos) - 1;
+        int to = Math.max(startPos, endPos) + 1;
+        hash ^= TourHash.segment(child, from, to);
+        if (mutation == MutationType.SWAP) {
+          Operators.swap(child, startPos, endPos);
         } else {
-          Operators.multiMove(cityList, b, c, a);
+          Operators.invert(child, startPos, endPos);
         }
-        */
+        hash ^= TourHash.segment(child, from, to);
+        /*
+           multi-swap mutation
+          int len = cityList.length;
+          int x = RNG.nextInt(len);
+          int y = RNG.nextInt(len);
+          int z = RNG.nextInt(len);
+
+          int a = Math.min(x, Math.min(y, z));
+          int c = Math.max(x, Math.max(y, z));
+          int b = Math.min(Math.max(x,y), Math.min(Math.max(y,z), Math.max(x,z)));
+
+          Integer intEnd = null;
+          Integer dest = null;
+          if(RNG.nextBoolean()) {
+            Operators.multiMove(cityList, a, b, c);
+          } else {
+            Operators.multiMove(cityList, b, c, a);
+          }
+          */
+      }
+      return hash;
+    }
+
+    /** The penalised cost of the child being mutated after mutating x to y. */
+    private double mutationCost(int x, int y) {
+      return mutation == MutationType.SWAP ? segments.swapCost(x, y) : segments.invertCost(x, y);
+    }
+
+    private RouteSegments segments() {
+      if (segments == null) {
+        segments = new RouteSegments(instance.getConstraints());
+      }
+      return segments;
     }
   }
 
+  /** Seed for the pair'th pair of children of a generation in DETERMINISTIC mode. */
+  private long pairSeed(int generation, int pair) {
+    long h = seed + generation * 0x9E3779B97F4A7C15L + pair * 0xC2B2AE3D27D4EB4FL;
+    h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+    return h ^ (h >>> 33);
+  }
+
+  /**
+   * Stop the simulation at the end of the current generation. If it hasn't
+   * started yet, it stops as soon as it does.
+   */
   public void stop() {
-    this.stop = true;
+    control.stop();
+  }
+
+  /** Pause the simulation at the end of the current generation. */
+  public void pause() {
+    control.pause();
+  }
+
+  /** Resume a paused simulation. */
+  public void resume() {
+    control.resume();
+  }
+
+  /** Whether the simulation is paused. */
+  public boolean isPaused() {
+    return control.getState() == RunControl.State.PAUSED;
+  }
+
+  /**
+   * Wait for the simulation to finish, e.g. after stop().
+   *
+   * @return Whether it finished before the timeout.
+   */
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    return control.awaitTermination(timeout, unit);
+  }
+
+  /**
+   * Start from the given tours, e.g. the population of an earlier run repaired
+   * with InstanceDelta, rather than from random ones. If there are fewer tours
+   * than the population size the rest are random; tours that don't visit
+   * every city once are ignored.
+   *
+   * @param tours The tours to start from, or null for random ones.
+   */
+  public void setInitialTours(int[][] tours) {
+    this.initialTours = tours;
+  }
+
+  /**
+   * Seed the random generator, e.g. to repeat a run. In DETERMINISTIC mode
+   * the run is then the same whatever the number of BREEDING_THREADS.
+   */
+  public void setSeed(long seed) {
+    this.seed = seed;
+    rand.setSeed(seed);
+  }
+
+  /** Choose the operators used to make children. Set before simulate(). */
+  public void setOperators(CrossoverType crossover, MutationType mutation) {
+    this.crossoverType = crossover;
+    this.mutationType = mutation;
+  }
+
+  /**
+   * Stop as soon as the best tour is within a fraction of the lower bound,
+   * e.g. 0.05 to stop within 5%. Setting a target computes the lower bound at
+   * the start of each run. Only an exact bound stops a run, so instances too
+   * large for a distance matrix run to the end.
+   *
+   * @param gap The target gap, or null to run to the end.
+   */
+  public void setTargetGap(Double gap) {
+    this.targetGap = gap;
+  }
+
+  /**
+   * Limit how long the simulation runs for. Whichever limit is reached first
+   * ends the run.
+   *
+   * @param generations The last generation to run.
+   * @param deadline The System.nanoTime() at which to stop, or null for none.
+   */
+  public void setBudget(int generations, Long deadline) {
+    this.maxGenerations = generations;
+    this.deadline = deadline;
+  }
+
+  /**
+   * Record the best cost of every generation.
+   *
+   * @param writer The writer to append to, or null to stop recording.
+   * @param runId Identifies this simulation's records in the output.
+   */
+  public void setResultWriter(ResultWriter writer, int runId) {
+    this.resultWriter = writer;
+    this.runId = runId;
+  }
+
+  /**
+   * Get copies of the best tours in the population. Only to be called from a
+   * GenerationHook.
+   *
+   * @param count The number of tours wanted.
+   * @return Up to count tours, best first.
+   */
+  public int[][] getBestTours(int count) {
+    count = Math.min(count, populationSize);
+    Chromosome[] best;
+    if (STEADY_STATE) {
+      best = chromosomes.clone();
+      Arrays.sort(best);
+    } else {
+      best = chromosomes;
+    }
+    int[][] tours = new int[count][];
+    for (int i = 0; i < count; i++) {
+      tours[i] = best[i].getCityList().clone();
+    }
+    return tours;
+  }
+
+  /**
+   * Bring a tour from elsewhere into the population in place of the worst
+   * individual, if it is better. Only to be called from a GenerationHook.
+   *
+   * @return Whether the tour was accepted.
+   */
+  public boolean immigrate(int[] tour) {
+    if (!isTour(tour)) {
+      return false;
+    }
+    double cost = evaluator.cost(tour);
+    if (STEADY_STATE) {
+      if (cost >= worstHeap.worstCost()) {
+        return false;
+      }
+      int slot = worstHeap.worst();
+      populationHashes.remove(chromosomes[slot].getHash());
+      chromosomes[slot].setCities(tour);
+      chromosomes[slot].cost = cost;
+      populationHashes.add(chromosomes[slot].getHash());
+      worstHeap.update(slot, cost);
+      if (cost < chromosomes[bestSlot].getCost()) {
+        bestSlot = slot;
+      }
+    } else {
+      Chromosome worst = chromosomes[populationSize - 1];
+      if (cost >= worst.getCost()) {
+        return false;
+      }
+      worst.setCities(tour);
+      worst.cost = cost;
+      Arrays.sort(chromosomes);
+    }
+    return true;
+  }
+
+  /** Check that a tour is a permutation of this simulation's cities. */
+  private boolean isTour(int[] tour) {
+    return isTour(tour, cityCount);
+  }
+
+  /** Check that a tour is a permutation of cities 0 to cityCount - 1. */
+  static boolean isTour(int[] tour, int cityCount) {
+    if (tour.length != cityCount) {
+      return false;
+    }
+    boolean[] seen = new boolean[cityCount];
+    for (int city : tour) {
+      if (city < 0 || city >= cityCount || seen[city]) {
+        return false;
+      }
+      seen[city] = true;
+    }
+    return true;
+  }
+
+  /**
+   * Set a hook to be called on the simulation thread after every generation,
+   * e.g. to exchange tours with other simulations.
+   */
+  public void setGenerationHook(GenerationHook hook) {
+    this.generationHook = hook;
   }
 
   public void setListener(Listener listener) {
@@ -302,28 +1190,170 @@ public class Simulation {
   }
 
   private void setStatus(String status) {
-    if (listener != null) {
-      listener.onUpdate(status);
+    report(new Status(status));
+  }
+
+  /** Pass a status update to the listener, or queue it in ASYNC_STATUS mode. */
+  private void report(Status status) {
+    if (reporter != null) {
+      if (status.message != null) {
+        reporter.put(status);
+      } else {
+        reporter.offer(status);
+      }
+    } else if (listener != null) {
+      listener.onUpdate(status.format(intf, doubf));
+    }
+  }
+
+  /**
+   * A status update. Generation updates keep their figures and are only
+   * formatted when passed to the listener.
+   */
+  private static class Status {
+    /** Ends a StatusReporter. */
+    static final Status END = new Status("");
+
+    final String message;
+    final int generation;
+    final double cost;
+    final double rate;
+    final double lowerBound;
+    final boolean lowerBoundExact;
+    final double gap;
+    final Double endCost;
+
+    Status(String message) {
+      this.message = message;
+      this.generation = 0;
+      this.cost = 0;
+      this.rate = 0;
+      this.lowerBound = 0;
+      this.lowerBoundExact = false;
+      this.gap = 0;
+      this.endCost = null;
+    }
+
+    Status(int generation, RunResult result, Double endCost) {
+      this.message = null;
+      this.generation = generation;
+      this.cost = result.cost;
+      this.rate = result.rate;
+      this.lowerBound = result.lowerBound;
+      this.lowerBoundExact = result.lowerBoundExact;
+      this.gap = result.gap;
+      this.endCost = endCost;
+    }
+
+    String format(NumberFormat intf, NumberFormat doubf) {
+      if (message != null) {
+        return message;
+      }
+      String gapStatus = "";
+      if (lowerBound > 0) {
+        gapStatus = " Gap " + doubf.format(gap * 100) + "%" + (lowerBoundExact ? "" : " (estimate)");
+      }
+      if (endCost != null) {
+        return "Generation " + generation + " Cost " + intf.format(cost) + gapStatus
+            + " Rate " + doubf.format(rate) + " Cost at 1000: " + intf.format(endCost);
+      }
+      return "Generation " + generation + " Cost " + intf.format(cost) + gapStatus + " Rate "
+          + doubf.format(rate);
+    }
+  }
+
+  /** Formats status updates and passes them to the listener on its own thread. */
+  private class StatusReporter implements Runnable {
+    private final BlockingQueue<Status> queue = new ArrayBlockingQueue<Status>(STATUS_QUEUE_SIZE);
+
+    /** Queue an update, dropping it if the listener is too far behind. */
+    void offer(Status status) {
+      queue.offer(status);
+    }
+
+    /**
+     * Queue an update that mustn't be dropped, waiting for room if need be.
+     * An interrupt doesn't stop the wait, or END could be lost and the
+     * reporter thread never finish, but is passed on once it is queued.
+     */
+    void put(Status status) {
+      boolean interrupted = false;
+      while (true) {
+        try {
+          queue.put(status);
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    @Override
+    public void run() {
+      NumberFormat reporterIntf = integerFormat();
+      NumberFormat reporterDoubf = decimalFormat();
+      try {
+        Status status;
+        while ((status = queue.take()) != Status.END) {
+          Listener current = listener;
+          if (current != null) {
+            current.onUpdate(status.format(reporterIntf, reporterDoubf));
+          }
+        }
+      } catch (InterruptedException e) {
+        // Exit
+      }
     }
   }
 
+  private static NumberFormat integerFormat() {
+    NumberFormat intf = NumberFormat.getInstance();
+    intf.setMaximumFractionDigits(0);
+    intf.setGroupingUsed(false);
+    return intf;
+  }
+
+  private static NumberFormat decimalFormat() {
+    NumberFormat doubf = NumberFormat.getInstance();
+    doubf.setMinimumFractionDigits(0);
+    doubf.setMaximumFractionDigits(2);
+    return doubf;
+  }
+
   public interface Listener {
     void onUpdate(String status);
   }
 
+  public interface GenerationHook {
+    void afterGeneration(Simulation simulation, int generation);
+  }
+
   public static class RunResult {
     public double rate = 0;
-    public int convergenceGen = 0;
+    public double convergenceGen = 0;
     public double cost = 0;
+    /** The lower bound on the cost, or 0 if it wasn't computed. */
+    public double lowerBound = 0;
+    /** Whether lowerBound is proven, rather than an estimate; see LowerBound. */
+    public boolean lowerBoundExact = false;
+    /** The relative gap between cost and lowerBound. */
+    public double gap = 0;
     public void add(RunResult other) {
       this.rate += other.rate;
       this.convergenceGen += other.convergenceGen;
       this.cost += other.cost;
+      this.lowerBound += other.lowerBound;
+      this.gap += other.gap;
     }
     public void divide(double factor) {
       this.rate /= factor;
       this.convergenceGen /= factor;
       this.cost /= factor;
+      this.lowerBound /= factor;
+      this.gap /= factor;
     }
     public String toString() {
       return "RunResult Cost: " + cost;
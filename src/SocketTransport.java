@@ -0,0 +1,308 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A MigrationTransport over TCP. All network I/O happens on one background
+ * thread using non-blocking channels, so send() and receive() never wait on
+ * the network. Each message is framed by its length.
+ *
+ * Every island listens on its own address and connects out to each of its
+ * peers. A peer that can't be reached, or that isn't reading fast enough,
+ * simply misses migrants; dropped connections are retried periodically.
+ */
+class SocketTransport implements MigrationTransport {
+
+  /** Messages waiting per peer (and received); further messages are dropped. */
+  private static final int QUEUE_SIZE = 16;
+
+  /** Largest frame accepted from a peer. */
+  private static final int MAX_FRAME = 64 << 20;
+
+  /** Milliseconds between attempts to reach a peer. */
+  private static final long RECONNECT_DELAY = 1000;
+
+  /** An outgoing connection. */
+  private static class Peer {
+    final InetSocketAddress address;
+    final BlockingQueue<ByteBuffer> outbox = new ArrayBlockingQueue<ByteBuffer>(QUEUE_SIZE);
+    SocketChannel channel;
+    SelectionKey key;
+    /** The frame currently being written, if any. */
+    ByteBuffer writing;
+    long retryAt = 0;
+
+    Peer(InetSocketAddress address) {
+      this.address = address;
+    }
+  }
+
+  /** Read state of an incoming connection. */
+  private static class Connection {
+    final ByteBuffer header = ByteBuffer.allocate(4);
+    ByteBuffer body;
+  }
+
+  private final Selector selector;
+  private final ServerSocketChannel server;
+  private final List<Peer> peers = new ArrayList<Peer>();
+  private final BlockingQueue<Migrants> inbox = new ArrayBlockingQueue<Migrants>(QUEUE_SIZE);
+
+  private final Thread ioThread;
+  private volatile boolean closed = false;
+
+  /**
+   * @param listen The address to accept migrants on.
+   * @param peerAddresses The addresses of the other islands.
+   */
+  SocketTransport(InetSocketAddress listen, List<InetSocketAddress> peerAddresses)
+      throws IOException {
+    selector = Selector.open();
+    server = ServerSocketChannel.open();
+    try {
+      server.configureBlocking(false);
+      server.socket().bind(listen);
+      server.register(selector, SelectionKey.OP_ACCEPT);
+    } catch (IOException e) {
+      server.close();
+      selector.close();
+      throw e;
+    }
+    for (InetSocketAddress address : peerAddresses) {
+      peers.add(new Peer(address));
+    }
+
+    ioThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        runLoop();
+      }
+    }, "SocketTransport");
+    ioThread.setDaemon(true);
+    ioThread.start();
+  }
+
+  /** Get the port actually listened on (useful when binding port 0). */
+  int getLocalPort() {
+    return server.socket().getLocalPort();
+  }
+
+  @Override
+  public void send(Migrants migrants) {
+    byte[] message = migrants.encode();
+    ByteBuffer frame = ByteBuffer.allocate(4 + message.length);
+    frame.putInt(message.length).put(message).flip();
+    for (Peer peer : peers) {
+      peer.outbox.offer(frame.duplicate());
+    }
+    selector.wakeup();
+  }
+
+  @Override
+  public List<Migrants> receive() {
+    List<Migrants> received = new ArrayList<Migrants>();
+    inbox.drainTo(received);
+    return received;
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    selector.wakeup();
+    try {
+      ioThread.join(RECONNECT_DELAY);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Body of the I/O thread. */
+  private void runLoop() {
+    try {
+      while (!closed) {
+        long now = System.currentTimeMillis();
+        for (Peer peer : peers) {
+          if (peer.channel == null && now >= peer.retryAt) {
+            connect(peer);
+          } else if (peer.key != null && peer.channel.isConnected()
+              && (peer.writing != null || !peer.outbox.isEmpty())) {
+            peer.key.interestOps(SelectionKey.OP_WRITE);
+          }
+        }
+
+        selector.select(RECONNECT_DELAY);
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept();
+          } else if (key.isConnectable()) {
+            finishConnect((Peer) key.attachment());
+          } else if (key.isReadable()) {
+            read(key);
+          } else if (key.isWritable()) {
+            write((Peer) key.attachment());
+          }
+        }
+      }
+    } catch (IOException e) {
+      // The selector itself failed; nothing more can be done
+    } finally {
+      for (SelectionKey key : selector.keys()) {
+        closeQuietly(key);
+      }
+      try {
+        selector.close();
+      } catch (IOException e) {
+        // Closing anyway
+      }
+    }
+  }
+
+  private void connect(Peer peer) {
+    try {
+      peer.channel = SocketChannel.open();
+      peer.channel.configureBlocking(false);
+      peer.channel.connect(peer.address);
+      peer.key = peer.channel.register(selector, SelectionKey.OP_CONNECT, peer);
+    } catch (IOException e) {
+      disconnect(peer);
+    }
+  }
+
+  private void finishConnect(Peer peer) {
+    try {
+      // Until the connection is made, keep waiting for OP_CONNECT
+      if (peer.channel.finishConnect()) {
+        peer.key.interestOps(0);
+      }
+    } catch (IOException e) {
+      disconnect(peer);
+    }
+  }
+
+  private void write(Peer peer) {
+    try {
+      while (true) {
+        if (peer.writing == null) {
+          peer.writing = peer.outbox.poll();
+          if (peer.writing == null) {
+            peer.key.interestOps(0);
+            return;
+          }
+        }
+        peer.channel.write(peer.writing);
+        if (peer.writing.hasRemaining()) {
+          // Socket buffer full; carry on when it drains
+          return;
+        }
+        peer.writing = null;
+      }
+    } catch (IOException e) {
+      disconnect(peer);
+    }
+  }
+
+  /** Drop a peer's connection and anything queued for it, and retry later. */
+  private void disconnect(Peer peer) {
+    if (peer.key != null) {
+      closeQuietly(peer.key);
+    } else if (peer.channel != null) {
+      try {
+        peer.channel.close();
+      } catch (IOException e) {
+        // Dropping it anyway
+      }
+    }
+    peer.channel = null;
+    peer.key = null;
+    peer.writing = null;
+    peer.outbox.clear();
+    peer.retryAt = System.currentTimeMillis() + RECONNECT_DELAY;
+  }
+
+  /**
+   * Accept a connection from another island. A connection that can't be set
+   * up is closed, and the server carries on.
+   */
+  private void accept() {
+    SocketChannel channel = null;
+    try {
+      channel = server.accept();
+      if (channel != null) {
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, new Connection());
+      }
+    } catch (IOException e) {
+      if (channel != null) {
+        closeQuietly(channel);
+      }
+    }
+  }
+
+  private void read(SelectionKey key) {
+    SocketChannel channel = (SocketChannel) key.channel();
+    Connection connection = (Connection) key.attachment();
+    try {
+      while (true) {
+        ByteBuffer target = connection.body != null ? connection.body : connection.header;
+        int n = channel.read(target);
+        if (n < 0) {
+          closeQuietly(key);
+          return;
+        }
+        if (target.hasRemaining()) {
+          return;
+        }
+        if (connection.body == null) {
+          connection.header.flip();
+          int length = connection.header.getInt();
+          connection.header.clear();
+          if (length < 0 || length > MAX_FRAME) {
+            closeQuietly(key);
+            return;
+          }
+          connection.body = ByteBuffer.allocate(length);
+        } else {
+          byte[] message = connection.body.array();
+          connection.body = null;
+          try {
+            inbox.offer(Migrants.decode(message));
+          } catch (IOException e) {
+            // A corrupt message is dropped; the framing is still intact
+          }
+        }
+      }
+    } catch (IOException e) {
+      closeQuietly(key);
+    }
+  }
+
+  private static void closeQuietly(SelectionKey key) {
+    key.cancel();
+    closeQuietly(key.channel());
+  }
+
+  private static void closeQuietly(Channel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // Closing anyway
+    }
+  }
+}
+// vim: ts=2:sw=2
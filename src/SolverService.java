@@ -0,0 +1,240 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Solves instances submitted from any thread on a shared pool with one worker
+ * per core. Requests wait in a bounded queue and are rejected when it is
+ * full, so a burst can't build up a backlog that every later request has to
+ * wait behind. A request's time limit starts when it is submitted, so time
+ * spent queued comes out of its budget rather than adding to its latency.
+ *
+ * Instances are cached by the content of their cities, so repeated solves of
+ * the same cities reuse the distance matrix and neighbour lists.
+ */
+class SolverService implements Closeable {
+
+  /** Requests that may wait for a worker. */
+  static final int QUEUE_SIZE = 64;
+
+  /**
+   * Memory that instances kept for reuse may take, in bytes. A single
+   * instance at Instance.MATRIX_LIMIT cities takes about 32MB.
+   */
+  static final long INSTANCE_CACHE_BYTES = 256L << 20;
+
+  private static final int POPULATION_SIZE = 200;
+  private static final int PARENT_POOL_SIZE = 100;
+
+  private final int populationSize;
+  private final int parentPoolSize;
+  private final ThreadPoolExecutor executor;
+
+  /** Recently used instances by key, least recently used first. */
+  private final Map<String, Instance> instances =
+      new LinkedHashMap<String, Instance>(16, 0.75f, true);
+
+  /** The memory taken by the instances, and the most they may take. */
+  private long instanceBytes = 0;
+  private final long instanceCacheBytes;
+
+  /** Where instances are kept between runs, if anywhere. */
+  private volatile InstanceCache instanceCache;
+
+  /** Solves currently running, so that close() can stop them. */
+  private final Set<Solve> running =
+      Collections.newSetFromMap(new ConcurrentHashMap<Solve, Boolean>());
+
+  SolverService() {
+    this(Runtime.getRuntime().availableProcessors(), QUEUE_SIZE, INSTANCE_CACHE_BYTES,
+        POPULATION_SIZE, PARENT_POOL_SIZE);
+  }
+
+  SolverService(int threads, int queueSize, long instanceCacheBytes,
+      int populationSize, int parentPoolSize) {
+    this.populationSize = populationSize;
+    this.parentPoolSize = parentPoolSize;
+    this.instanceCacheBytes = instanceCacheBytes;
+    final AtomicInteger workers = new AtomicInteger();
+    executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Solver-" + workers.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        }, new ThreadPoolExecutor.AbortPolicy());
+    executor.prestartAllCoreThreads();
+  }
+
+  /**
+   * Solve an instance. Cancelling the future stops the solve.
+   *
+   * @param cities The cities to tour. They are not modified.
+   * @param generations The most generations to run.
+   * @param timeLimitMillis The most time to take, counted from now.
+   * @return The best tour found within the budget.
+   * @throws RejectedExecutionException If the queue is full or the service
+   * has been closed.
+   */
+  Future<TourSnapshot> submit(City[] cities, int generations, long timeLimitMillis) {
+    Solve solve = new Solve(cities, generations,
+        System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeLimitMillis));
+    SolveTask task = new SolveTask(solve);
+    executor.execute(task);
+    return task;
+  }
+
+  /** Get the cached instance for a set of cities, creating it if needed. */
+  Instance getInstance(City[] cities) {
+    String key = Instance.key(cities);
+    synchronized (instances) {
+      Instance instance = instances.get(key);
+      if (instance != null) {
+        return instance;
+      }
+    }
+    // Built outside the lock so that other lookups aren't held up
+    Instance instance = null;
+    InstanceCache instanceCache = this.instanceCache;
+    if (instanceCache != null) {
+      try {
+        instance = instanceCache.get(cities);
+      } catch (IOException e) {
+        // Build it here instead
+      }
+    }
+    if (instance == null) {
+      instance = new Instance(cities);
+    }
+    synchronized (instances) {
+      Instance existing = instances.get(key);
+      if (existing != null) {
+        return existing;
+      }
+      instances.put(key, instance);
+      instanceBytes += instance.memorySize();
+      evictInstances();
+    }
+    return instance;
+  }
+
+  /**
+   * Drop the least recently used instances until the rest fit in the memory
+   * allowed, always keeping the most recent. Must hold the instances lock.
+   */
+  private void evictInstances() {
+    Iterator<Instance> eldest = instances.values().iterator();
+    while (instanceBytes > instanceCacheBytes && instances.size() > 1) {
+      instanceBytes -= eldest.next().memorySize();
+      eldest.remove();
+    }
+  }
+
+  /**
+   * Keep instances on disk as well as in memory, so that they are reused
+   * across runs.
+   *
+   * @param cache The cache, or null to keep instances only in memory.
+   */
+  void setInstanceCache(InstanceCache cache) {
+    this.instanceCache = cache;
+  }
+
+  /** Get the number of requests waiting for a worker. */
+  int getQueueLength() {
+    return executor.getQueue().size();
+  }
+
+  /**
+   * Reject new requests, stop running solves and discard queued ones, whose
+   * futures are cancelled.
+   */
+  @Override
+  public void close() {
+    for (Runnable queued : executor.shutdownNow()) {
+      ((SolveTask) queued).cancel(false);
+    }
+    for (Solve solve : running) {
+      solve.cancel();
+    }
+  }
+
+  /** Wait for running solves to finish after close(). */
+  boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    return executor.awaitTermination(timeout, unit);
+  }
+
+  private class Solve implements Callable<TourSnapshot> {
+    private final City[] cities;
+    private final int generations;
+    private final long deadline;
+    private volatile Simulation simulation;
+    private volatile boolean cancelled;
+
+    Solve(City[] cities, int generations, long deadline) {
+      this.cities = cities;
+      this.generations = generations;
+      this.deadline = deadline;
+    }
+
+    @Override
+    public TourSnapshot call() {
+      Simulation simulation = new Simulation(getInstance(cities), populationSize, parentPoolSize);
+      simulation.setBudget(generations, deadline);
+      this.simulation = simulation;
+      running.add(this);
+      try {
+        if (!cancelled) {
+          simulation.simulate();
+        }
+        return simulation.getBestTour();
+      } finally {
+        running.remove(this);
+      }
+    }
+
+    void cancel() {
+      cancelled = true;
+      Simulation simulation = this.simulation;
+      if (simulation != null) {
+        simulation.stop();
+      }
+    }
+  }
+
+  /** A future that also stops the simulation when cancelled. */
+  private static class SolveTask extends FutureTask<TourSnapshot> {
+    private final Solve solve;
+
+    SolveTask(Solve solve) {
+      super(solve);
+      this.solve = solve;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      boolean cancelled = super.cancel(mayInterruptIfRunning);
+      if (cancelled) {
+        solve.cancel();
+      }
+      return cancelled;
+    }
+  }
+}
+// vim: ts=2:sw=2
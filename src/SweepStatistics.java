@@ -0,0 +1,108 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Aggregates RunResults as runs finish, keeping separate RunStatistics for
+ * each combination of parameters ("cell"). Safe to add to from several
+ * threads; per-thread instances can also be merged.
+ */
+class SweepStatistics {
+
+  /** The statistics for one combination of parameters. */
+  static class Cell {
+    final RunStatistics cost = new RunStatistics();
+    final RunStatistics rate = new RunStatistics();
+    final RunStatistics convergenceGen = new RunStatistics();
+
+    void add(Simulation.RunResult result) {
+      cost.add(result.cost);
+      rate.add(result.rate);
+      convergenceGen.add(result.convergenceGen);
+    }
+
+    void merge(Cell other) {
+      cost.merge(other.cost);
+      rate.merge(other.rate);
+      convergenceGen.merge(other.convergenceGen);
+    }
+  }
+
+  private final Map<String, Cell> cells = new LinkedHashMap<String, Cell>();
+
+  /** Get the key for a combination of parameters. */
+  static String key(int cityCount, int populationSize, int parentPoolSize) {
+    return cityCount + "/" + populationSize + "/" + parentPoolSize;
+  }
+
+  synchronized void add(int cityCount, int populationSize, int parentPoolSize,
+      Simulation.RunResult result) {
+    cell(key(cityCount, populationSize, parentPoolSize)).add(result);
+  }
+
+  /**
+   * Add everything in another instance to this one. Only one lock is held at a
+   * time, so two instances can be merged into each other at once.
+   */
+  void merge(SweepStatistics other) {
+    Map<String, Cell> snapshot = other.snapshot();
+    synchronized (this) {
+      for (Map.Entry<String, Cell> entry : snapshot.entrySet()) {
+        cell(entry.getKey()).merge(entry.getValue());
+      }
+    }
+  }
+
+  /** Copy the cells. */
+  private synchronized Map<String, Cell> snapshot() {
+    Map<String, Cell> snapshot = new LinkedHashMap<String, Cell>();
+    for (Map.Entry<String, Cell> entry : cells.entrySet()) {
+      Cell copy = new Cell();
+      copy.merge(entry.getValue());
+      snapshot.put(entry.getKey(), copy);
+    }
+    return snapshot;
+  }
+
+  /** Get the statistics for a cell, or null if there are none. */
+  synchronized Cell get(int cityCount, int populationSize, int parentPoolSize) {
+    return cells.get(key(cityCount, populationSize, parentPoolSize));
+  }
+
+  private Cell cell(String key) {
+    Cell cell = cells.get(key);
+    if (cell == null) {
+      cell = new Cell();
+      cells.put(key, cell);
+    }
+    return cell;
+  }
+
+  /** One line per cell and statistic, in CSV. */
+  @Override
+  public synchronized String toString() {
+    StringBuilder sb = new StringBuilder(
+        "cities/population/parents, statistic, n, mean, ci95, sd, min, p10, p50, p90, max\n");
+    for (Map.Entry<String, Cell> entry : cells.entrySet()) {
+      Cell cell = entry.getValue();
+      appendRow(sb, entry.getKey(), "cost", cell.cost);
+      appendRow(sb, entry.getKey(), "rate", cell.rate);
+      appendRow(sb, entry.getKey(), "convergenceGen", cell.convergenceGen);
+    }
+    return sb.toString();
+  }
+
+  private static void appendRow(StringBuilder sb, String key, String name, RunStatistics stats) {
+    sb.append(key).append(", ").append(name)
+        .append(", ").append(stats.getCount())
+        .append(", ").append(stats.getMean())
+        .append(", ").append(stats.getConfidence95())
+        .append(", ").append(stats.getStdDev())
+        .append(", ").append(stats.getMin())
+        .append(", ").append(stats.getQuantile(0.1))
+        .append(", ").append(stats.getQuantile(0.5))
+        .append(", ").append(stats.getQuantile(0.9))
+        .append(", ").append(stats.getMax())
+        .append('\n');
+  }
+}
+// vim: ts=2:sw=2
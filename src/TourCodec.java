@@ -0,0 +1,305 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * A compact binary format for tours, e.g. to send them to other processes or
+ * keep them in files. Each city is stored as its difference from the one
+ * before, zigzag-encoded so that small differences either way are small
+ * numbers, in a varint of 7 bits per byte. A record is:
+ *
+ *   varint cities, byte flags, varint generation, 8 byte cost,
+ *   varint[cities] zigzag(city[i] - city[i - 1]), 4 byte CRC32 of the above
+ *
+ * where city[-1] is 0. Fixed-size values are big-endian whatever the
+ * buffer's byte order. No city of a 100,000 city tour takes over 3 bytes.
+ *
+ * Tours can be made canonical as they are encoded, by reversing them if
+ * that puts the lower of their ends first. That only keeps the cost when a
+ * tour and its reverse cost the same, so the caller has to say that costs
+ * are symmetric too. Rotations change the cost of the open paths used here,
+ * so they are left alone.
+ *
+ * Writer and Reader stream records to and from files: a header of MAGIC and
+ * VERSION, then each record preceded by its length as a 4 byte int.
+ *
+ * This is for tours that leave a run, one at a time, e.g. for files and
+ * dashboards. Islands of the same run exchange Migrants instead: batches of
+ * similar tours, which share most of their edges and so deflate to less than
+ * these records take.
+ */
+final class TourCodec {
+
+  /** Identifies streams of tours, followed by a version number. */
+  private static final int MAGIC = 0x45435443; // "ECTC"
+  private static final int VERSION = 1;
+
+  /** Flag to make tours canonical as they are encoded. Needs SYMMETRIC. */
+  static final int CANONICAL = 1;
+
+  /** Flag stating that tours cost the same either way round. */
+  static final int SYMMETRIC = 2;
+
+  /** Most cities accepted when decoding, to reject garbage. */
+  private static final int MAX_CITIES = 1 << 24;
+
+  private TourCodec() {
+  }
+
+  /** The most bytes a tour of this many cities can take. */
+  static int maxEncodedSize(int cities) {
+    return 5 + 1 + 5 + 8 + 5 * cities + 4;
+  }
+
+  /** Encode a tour into a new array of just the right size. */
+  static byte[] encode(TourSnapshot tour, int flags) {
+    ByteBuffer out = ByteBuffer.allocate(maxEncodedSize(tour.size()));
+    encode(tour, flags, out);
+    byte[] data = new byte[out.position()];
+    out.flip();
+    out.get(data);
+    return data;
+  }
+
+  /**
+   * Encode a tour into a buffer at its position, which is moved past it.
+   *
+   * @param flags CANONICAL and SYMMETRIC, or 0. They are kept in the record.
+   * @throws IllegalArgumentException If the flags ask for a canonical tour
+   * without saying costs are symmetric.
+   * @throws java.nio.BufferOverflowException If the buffer hasn't room; see
+   * maxEncodedSize().
+   */
+  static void encode(TourSnapshot tour, int flags, ByteBuffer out) {
+    checkFlags(flags);
+    int start = out.position();
+    int len = tour.size();
+    boolean reverse = (flags & CANONICAL) != 0 && len > 1
+        && tour.getCity(len - 1) < tour.getCity(0);
+    putVarint(out, len);
+    out.put((byte) flags);
+    putVarint(out, tour.getGeneration());
+    putLong(out, Double.doubleToLongBits(tour.getCost()));
+    int prev = 0;
+    for (int i = 0; i < len; i++) {
+      int city = tour.getCity(reverse ? len - 1 - i : i);
+      int delta = city - prev;
+      putVarint(out, (delta << 1) ^ (delta >> 31));
+      prev = city;
+    }
+    putInt(out, (int) crc(out, start, out.position()));
+  }
+
+  private static void checkFlags(int flags) {
+    if ((flags & ~(CANONICAL | SYMMETRIC)) != 0) {
+      throw new IllegalArgumentException("Unknown flags " + flags);
+    }
+    if ((flags & CANONICAL) != 0 && (flags & SYMMETRIC) == 0) {
+      throw new IllegalArgumentException("Only tours with symmetric costs can be made canonical");
+    }
+  }
+
+  /**
+   * Decode a tour from a buffer at its position, which is moved past it.
+   *
+   * @param cities The cities the tour visits.
+   * @throws IOException If the record is truncated, corrupt or isn't a tour
+   * of these cities.
+   */
+  static TourSnapshot decode(ByteBuffer in, City[] cities) throws IOException {
+    int start = in.position();
+    try {
+      int len = getVarint(in);
+      if (len < 0 || len > MAX_CITIES || len != cities.length) {
+        throw new IOException("Tour has " + len + " cities, not " + cities.length);
+      }
+      int flags = in.get();
+      if ((flags & ~(CANONICAL | SYMMETRIC)) != 0
+          || ((flags & CANONICAL) != 0 && (flags & SYMMETRIC) == 0)) {
+        throw new IOException("Bad tour flags " + flags);
+      }
+      int generation = getVarint(in);
+      double cost = Double.longBitsToDouble(getLong(in));
+      int[] tour = new int[len];
+      boolean[] seen = new boolean[len];
+      int prev = 0;
+      for (int i = 0; i < len; i++) {
+        int zigzag = getVarint(in);
+        int city = prev + ((zigzag >>> 1) ^ -(zigzag & 1));
+        if (city < 0 || city >= len || seen[city]) {
+          throw new IOException("Not a tour");
+        }
+        seen[city] = true;
+        tour[i] = city;
+        prev = city;
+      }
+      long expected = crc(in, start, in.position());
+      if (getInt(in) != (int) expected) {
+        throw new IOException("Bad tour checksum");
+      }
+      return new TourSnapshot(cities, tour, cost, generation);
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated tour", e);
+    }
+  }
+
+  private static void putVarint(ByteBuffer out, int value) {
+    while ((value & ~0x7f) != 0) {
+      out.put((byte) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    out.put((byte) value);
+  }
+
+  private static int getVarint(ByteBuffer in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      byte b = in.get();
+      value |= (b & 0x7f) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+    throw new IOException("Varint too long");
+  }
+
+  private static void putInt(ByteBuffer out, int value) {
+    for (int shift = 24; shift >= 0; shift -= 8) {
+      out.put((byte) (value >>> shift));
+    }
+  }
+
+  private static int getInt(ByteBuffer in) {
+    int value = 0;
+    for (int i = 0; i < 4; i++) {
+      value = (value << 8) | (in.get() & 0xff);
+    }
+    return value;
+  }
+
+  private static void putLong(ByteBuffer out, long value) {
+    putInt(out, (int) (value >>> 32));
+    putInt(out, (int) value);
+  }
+
+  private static long getLong(ByteBuffer in) {
+    return ((long) getInt(in) << 32) | (getInt(in) & 0xffffffffL);
+  }
+
+  /** The CRC32 of buffer[from..to), read without moving its position. */
+  private static long crc(ByteBuffer buffer, int from, int to) {
+    CRC32 crc = new CRC32();
+    if (buffer.hasArray()) {
+      crc.update(buffer.array(), buffer.arrayOffset() + from, to - from);
+    } else {
+      byte[] chunk = new byte[Math.min(to - from, 8192)];
+      ByteBuffer view = buffer.duplicate();
+      view.limit(to).position(from);
+      while (view.hasRemaining()) {
+        int n = Math.min(chunk.length, view.remaining());
+        view.get(chunk, 0, n);
+        crc.update(chunk, 0, n);
+      }
+    }
+    return crc.getValue();
+  }
+
+  /** Writes a stream of tours. */
+  static final class Writer implements Closeable, Flushable {
+    private final DataOutputStream out;
+    private final int flags;
+    private ByteBuffer buffer = ByteBuffer.allocate(0);
+
+    /** @param flags The flags to encode every tour with; see encode(). */
+    Writer(OutputStream out, int flags) throws IOException {
+      checkFlags(flags);
+      this.out = new DataOutputStream(new BufferedOutputStream(out));
+      this.flags = flags;
+      this.out.writeInt(MAGIC);
+      this.out.writeInt(VERSION);
+    }
+
+    void write(TourSnapshot tour) throws IOException {
+      int size = maxEncodedSize(tour.size());
+      if (buffer.capacity() < size) {
+        buffer = ByteBuffer.allocate(size);
+      }
+      buffer.clear();
+      encode(tour, flags, buffer);
+      out.writeInt(buffer.position());
+      out.write(buffer.array(), 0, buffer.position());
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+
+  /** Reads a stream of tours written by Writer. */
+  static final class Reader implements Closeable {
+    private final DataInputStream in;
+    private final City[] cities;
+    private ByteBuffer buffer = ByteBuffer.allocate(0);
+
+    /** @param cities The cities the tours visit. */
+    Reader(InputStream in, City[] cities) throws IOException {
+      this.in = new DataInputStream(new BufferedInputStream(in));
+      this.cities = cities;
+      if (this.in.readInt() != MAGIC || this.in.readInt() != VERSION) {
+        throw new IOException("Not a stream of tours");
+      }
+    }
+
+    /**
+     * Read the next tour.
+     *
+     * @return The tour, or null at the end of the stream.
+     * @throws EOFException If the stream ends part way through a tour.
+     */
+    TourSnapshot read() throws IOException {
+      // The stream may only end between tours, not in a length
+      int first = in.read();
+      if (first < 0) {
+        return null;
+      }
+      int length = (first << 24) | (in.readUnsignedByte() << 16)
+          | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+      if (length < 0 || length > maxEncodedSize(cities.length)) {
+        throw new IOException("Bad tour length " + length);
+      }
+      if (buffer.capacity() < length) {
+        buffer = ByteBuffer.allocate(length);
+      }
+      in.readFully(buffer.array(), 0, length);
+      buffer.clear();
+      buffer.limit(length);
+      TourSnapshot tour = decode(buffer, cities);
+      if (buffer.hasRemaining()) {
+        throw new IOException("Trailing bytes after tour");
+      }
+      return tour;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+}
+// vim: ts=2:sw=2
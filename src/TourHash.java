@@ -0,0 +1,48 @@
+/**
+ * Zobrist-style hashing of tours. Each undirected edge between two cities has
+ * its own pseudo-random key and the hash of a tour is the XOR of the keys of
+ * the edges it follows. Since XOR is its own inverse the hash can be updated
+ * in place when an operator only changes part of a tour: XOR out the edges
+ * around the region before the change and XOR them back in afterwards.
+ *
+ * The cost of a tour is the length of the (open) path so a tour and its
+ * reverse have the same hash and the same cost, while rotations, which change
+ * the cost, hash differently.
+ */
+final class TourHash {
+
+  private TourHash() {
+  }
+
+  /** The key for the edge between cities a and b (in either direction). */
+  static long edge(int a, int b) {
+    long lo = Math.min(a, b);
+    long hi = Math.max(a, b);
+    // SplitMix64 finalizer
+    long z = (lo << 32 | hi) + 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  /** Hash a whole tour. */
+  static long of(int[] tour) {
+    return segment(tour, 0, tour.length - 1);
+  }
+
+  /**
+   * XOR together the keys of the edges between the cities at positions from
+   * and to (inclusive). Positions outside the tour are ignored so callers
+   * can pass the neighbours of an edited region without bounds checks.
+   */
+  static long segment(int[] tour, int from, int to) {
+    from = Math.max(from, 0);
+    to = Math.min(to, tour.length - 1);
+    long hash = 0;
+    for (int i = from; i < to; i++) {
+      hash ^= edge(tour[i], tour[i + 1]);
+    }
+    return hash;
+  }
+}
+// vim: ts=2:sw=2
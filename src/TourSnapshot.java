@@ -0,0 +1,53 @@
+/**
+ * An immutable copy of a tour, published by a running Simulation so that
+ * other threads can read it without locking.
+ */
+final class TourSnapshot {
+
+  private final City[] cities;
+  private final int[] tour;
+  private final double cost;
+  private final int generation;
+
+  /**
+   * @param cities The cities the tour visits. These are never modified once a
+   * simulation has started so they are shared rather than copied.
+   * @param tour The tour, which is copied.
+   * @param cost The cost of the tour.
+   * @param generation The generation the tour was found in.
+   */
+  TourSnapshot(City[] cities, int[] tour, double cost, int generation) {
+    this.cities = cities;
+    this.tour = tour.clone();
+    this.cost = cost;
+    this.generation = generation;
+  }
+
+  City[] getCities() {
+    return cities;
+  }
+
+  /** Get the number of cities in the tour. */
+  int size() {
+    return tour.length;
+  }
+
+  /** Get the ith city of the tour. */
+  int getCity(int i) {
+    return tour[i];
+  }
+
+  /** Get a copy of the tour. */
+  int[] getTour() {
+    return tour.clone();
+  }
+
+  double getCost() {
+    return cost;
+  }
+
+  int getGeneration() {
+    return generation;
+  }
+}
+// vim: ts=2:sw=2
@@ -0,0 +1,199 @@
+/**
+ * Travel costs given by a matrix rather than by the distance between cities,
+ * for costs that differ by direction (going from a to b needn't cost the same
+ * as going from b to a) or by the time of departure.
+ *
+ * Costs are kept in one flat array row by row, the cost from a to b at
+ * a * size + b. Time-dependent costs have one such matrix per time slice:
+ * slice s applies to departures from s * sliceLength up to the next slice,
+ * and the last slice to all later departures. The time of departure from a
+ * city is the cost of the tour up to it, so the costs are travel times.
+ */
+final class TravelCosts {
+
+  private final int size;
+  private final double[][] slices;
+  private final double sliceLength;
+  private final boolean symmetric;
+
+  /** Costs that don't depend on time. */
+  TravelCosts(double[] matrix, int size) {
+    this(new double[][] { matrix }, size, Double.POSITIVE_INFINITY);
+  }
+
+  /**
+   * Costs that depend on the time of departure.
+   *
+   * @param slices The matrix for each time slice, in order.
+   * @param sliceLength The length of time each slice covers.
+   */
+  TravelCosts(double[][] slices, int size, double sliceLength) {
+    if (slices.length == 0 || sliceLength <= 0) {
+      throw new IllegalArgumentException("Need at least one slice of positive length");
+    }
+    for (double[] matrix : slices) {
+      if (matrix.length != size * size) {
+        throw new IllegalArgumentException("Matrix is not " + size + " by " + size);
+      }
+    }
+    this.size = size;
+    this.slices = slices.clone();
+    this.sliceLength = sliceLength;
+    this.symmetric = slices.length == 1 && isSymmetric(slices[0], size);
+  }
+
+  private static boolean isSymmetric(double[] matrix, int size) {
+    for (int a = 0; a < size; a++) {
+      for (int b = a + 1; b < size; b++) {
+        if (matrix[a * size + b] != matrix[b * size + a]) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /** Get the number of cities. */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Whether tours cost the same either way round, so that the usual
+   * symmetric operators apply: costs are the same both ways and don't depend
+   * on time.
+   */
+  boolean isSymmetric() {
+    return symmetric;
+  }
+
+  /** Whether costs depend on the time of departure. */
+  boolean isTimeDependent() {
+    return slices.length > 1;
+  }
+
+  /** The cost of going from one city to another, leaving at time 0. */
+  double cost(int from, int to) {
+    return slices[0][from * size + to];
+  }
+
+  /** The cost of going from one city to another, leaving at the given time. */
+  double cost(int from, int to, double time) {
+    return slices[slice(time)][from * size + to];
+  }
+
+  private int slice(double time) {
+    double slice = time / sliceLength;
+    return slice < slices.length - 1 ? (int) slice : slices.length - 1;
+  }
+
+  /**
+   * The least cost of going between a and b, either way and at any time. This
+   * is symmetric, and a lower bound on the cost of any tour using the edge.
+   */
+  double leastCost(int a, int b) {
+    double least = Double.POSITIVE_INFINITY;
+    for (double[] matrix : slices) {
+      least = Math.min(least, Math.min(matrix[a * size + b], matrix[b * size + a]));
+    }
+    return least;
+  }
+
+  /** Calculate the cost of following a tour from its first city. */
+  double cost(int[] tour) {
+    double[] matrix = slices[0];
+    double cost = 0;
+    int prev = tour[0];
+    if (slices.length == 1) {
+      for (int i = 1; i < tour.length; i++) {
+        int next = tour[i];
+        cost += matrix[prev * size + next];
+        prev = next;
+      }
+    } else {
+      for (int i = 1; i < tour.length; i++) {
+        int next = tour[i];
+        cost += slices[slice(cost)][prev * size + next];
+        prev = next;
+      }
+    }
+    return cost;
+  }
+
+  /**
+   * Fill forward[i] with the cost of tour[0..i] travelled forwards, and
+   * backward[i] with its cost travelled backwards, so that reversalDelta()
+   * takes constant time. Only for costs that don't depend on time.
+   */
+  void prefixCosts(int[] tour, double[] forward, double[] backward) {
+    forward[0] = 0;
+    backward[0] = 0;
+    prefixCosts(tour, forward, backward, 1);
+  }
+
+  /**
+   * Bring forward[from..] and backward[from..] up to date after the cities
+   * from tour[from] onwards have changed. The earlier entries must be right.
+   */
+  private void prefixCosts(int[] tour, double[] forward, double[] backward, int from) {
+    double[] matrix = slices[0];
+    for (int i = from; i < tour.length; i++) {
+      forward[i] = forward[i - 1] + matrix[tour[i - 1] * size + tour[i]];
+      backward[i] = backward[i - 1] + matrix[tour[i] * size + tour[i - 1]];
+    }
+  }
+
+  /**
+   * The change in cost from reversing tour[i..j], given the tour's prefix
+   * costs. Unlike with symmetric costs the reversed segment itself costs
+   * something different too.
+   */
+  double reversalDelta(int[] tour, double[] forward, double[] backward, int i, int j) {
+    double[] matrix = slices[0];
+    double delta = (backward[j] - backward[i]) - (forward[j] - forward[i]);
+    if (i > 0) {
+      delta += matrix[tour[i - 1] * size + tour[j]] - matrix[tour[i - 1] * size + tour[i]];
+    }
+    if (j < tour.length - 1) {
+      delta += matrix[tour[i] * size + tour[j + 1]] - matrix[tour[j] * size + tour[j + 1]];
+    }
+    return delta;
+  }
+
+  /**
+   * Improve a tour by reversing segments until no reversal helps. Costs that
+   * depend on time are left alone, as a reversal changes the cost of
+   * everything after it.
+   *
+   * @return The number of reversals made.
+   */
+  int improve(int[] tour) {
+    if (isTimeDependent()) {
+      return 0;
+    }
+    int len = tour.length;
+    double[] forward = new double[len];
+    double[] backward = new double[len];
+    prefixCosts(tour, forward, backward);
+    int moves = 0;
+    boolean improved = true;
+    while (improved) {
+      improved = false;
+      for (int i = 0; i < len - 1; i++) {
+        for (int j = i + 1; j < len; j++) {
+          if (reversalDelta(tour, forward, backward, i, j) < -1e-9) {
+            for (int a = i, b = j; a < b; a++, b--) {
+              Operators.swap(tour, a, b);
+            }
+            // Only the prefix costs from the reversal onwards change
+            prefixCosts(tour, forward, backward, Math.max(i, 1));
+            moves++;
+            improved = true;
+          }
+        }
+      }
+    }
+    return moves;
+  }
+}
+// vim: ts=2:sw=2
@@ -1,8 +1,10 @@
 import java.applet.Applet;
 import java.awt.*;
 import java.awt.event.*;
+import java.io.File;
+import java.io.IOException;
 import java.text.*;
-import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -23,6 +25,11 @@ public class TravelingSalesman extends Applet implements Simulation.Listener {
    */
   private Button ctrlStart;
 
+  /**
+   * The Pause button.
+   */
+  private Button ctrlPause;
+
   /**
    * The Magic button.
    */
@@ -45,9 +52,25 @@ public class TravelingSalesman extends Applet implements Simulation.Listener {
   private Panel ctrlButtons;
 
   /**
-   * The current status, which is displayed just above the controls.
+   * The current status, which is displayed just above the controls. Written
+   * by the simulation thread.
+   */
+  private volatile String status = "";
+
+  /**
+   * Time between redraws, in milliseconds. Redraws are driven by this timer
+   * rather than by the simulation so the display never slows it down.
    */
-  private String status = "";
+  private static final int FRAME_INTERVAL = 40;
+
+  private Timer frameTimer;
+
+  /** The off-screen image the display is drawn into, kept between frames. */
+  private Image backBuffer;
+
+  /** What was drawn in the last frame, to skip redraws when nothing changed. */
+  private TourSnapshot drawnTour;
+  private String drawnStatus;
 
   private Integer minParentPoolSize = null;
 
@@ -63,8 +86,10 @@ public class TravelingSalesman extends Applet implements Simulation.Listener {
     // setup the controls
     ctrlButtons = new Panel();
     ctrlStart = new Button("Start");
+    ctrlPause = new Button("Pause");
     ctrlMagic = new Button("Stats run");
     ctrlButtons.add(ctrlStart);
+    ctrlButtons.add(ctrlPause);
     ctrlButtons.add(new Label("# Cities:"));
     ctrlButtons.add(ctrlCities = new TextField(5));
     ctrlButtons.add(new Label("Population Size:"));
@@ -76,6 +101,11 @@ public class TravelingSalesman extends Applet implements Simulation.Listener {
     ctrlPopulationSize.setText("1000");
     ctrlCities.setText("200");
 
+    // Where the Magic button records the best cost of every generation of
+    // every run, in ResultWriter's binary format. Only recorded if the page
+    // gives the applet a sweepResultFile parameter.
+    final String sweepResultFile = getParameter("sweepResultFile");
+
     // add an action listener for the button
     ctrlStart.addActionListener(new ActionListener() {
       @Override
@@ -84,6 +114,13 @@ public class TravelingSalesman extends Applet implements Simulation.Listener {
       }
     });
 
+    ctrlPause.addActionListener(new ActionListener() {
+      @Override
+      public void actionPerformed(ActionEvent e) {
+        togglePause();
+      }
+    });
+
     ctrlMagic.addActionListener(new ActionListener() {
       @Override
       public void actionPerformed(ActionEvent e) {
@@ -93,31 +130,74 @@ public class TravelingSalesman extends Applet implements Simulation.Listener {
         System.out.println("Running simulation for " + cities + " cities, " + population
             + " population, " + parentPoolSize + " parent pool size");
         ExecutorService ex = Executors.newFixedThreadPool(1);
+        final SweepStatistics stats = new SweepStatistics();
+        ResultWriter results = null;
+        if (sweepResultFile != null) {
+          try {
+            results = new ResultWriter(new File(sweepResultFile), ResultWriter.Format.BINARY);
+          } catch (IOException exc) {
+            exc.printStackTrace();
+          }
+        }
+        final ResultWriter writer = results;
         int repeats = 50;
         for(int i = 0; i < repeats; i++) {
           final int x = i;
           ex.execute(new Runnable() {
             public void run() {
-              Simulation.RunResult r = new Simulation(cities, population, parentPoolSize).simulate();
+              Simulation sim = new Simulation(cities, population, parentPoolSize);
+              sim.setResultWriter(writer, x);
+              Simulation.RunResult r = sim.simulate();
+              stats.add(cities, population, parentPoolSize, r);
               System.out.println();
             }
           });
         }
+        ex.shutdown();
         try {
           ex.awaitTermination(24, TimeUnit.HOURS);
         } catch(InterruptedException exc) {
           exc.printStackTrace();
         }
+        if (writer != null) {
+          try {
+            writer.close();
+            System.out.println("Generations recorded in " + sweepResultFile);
+          } catch (IOException exc) {
+            exc.printStackTrace();
+          }
+        }
+        System.out.print(stats);
         System.out.println("Done");
       }
     });
 
     executorService = Executors.newSingleThreadExecutor();
 
+    frameTimer = new Timer(FRAME_INTERVAL, new ActionListener() {
+      @Override
+      public void actionPerformed(ActionEvent e) {
+        TourSnapshot tour = simulation != null ? simulation.getBestTour() : null;
+        if (tour != drawnTour || status != drawnStatus) {
+          update();
+        }
+      }
+    });
+
     started = false;
     update();
   }
 
+  @Override
+  public void start() {
+    frameTimer.start();
+  }
+
+  @Override
+  public void stop() {
+    frameTimer.stop();
+  }
+
   /**
    * Start the background thread.
    */
@@ -140,12 +220,16 @@ public class TravelingSalesman extends Applet implements Simulation.Listener {
   }
 
   private void startThread(int citCount, int population, int poolsize) {
+    // The old simulation stops at the end of its generation, so the new one
+    // is only briefly queued behind it
     if (simulation != null) {
       simulation.stop();
     }
 
-    simulation = new Simulation(citCount, population, poolsize);
-    simulation.setListener(this);
+    final Simulation next = new Simulation(citCount, population, poolsize);
+    next.setListener(this);
+    simulation = next;
+    ctrlPause.setLabel("Pause");
 
     // start up the background thread
     started = true;
@@ -153,35 +237,58 @@ public class TravelingSalesman extends Applet implements Simulation.Listener {
     executorService.submit(new Runnable() {
       @Override
       public void run() {
-        simulation.simulate();
+        next.simulate();
       }
     });
   }
 
+  /** Pause the running simulation, or resume it if paused. */
+  private void togglePause() {
+    if (simulation == null) {
+      return;
+    }
+    if (simulation.isPaused()) {
+      simulation.resume();
+      ctrlPause.setLabel("Pause");
+    } else {
+      simulation.pause();
+      if (simulation.isPaused()) {
+        ctrlPause.setLabel("Resume");
+      }
+    }
+  }
+
   /**
    * Update the display
    */
   public void update() {
-    Image img = createImage(getBounds().width, getBounds().height);
-    Graphics g = img.getGraphics();
+    int width = getBounds().width;
+    int height = getBounds().height;
+    if (backBuffer == null || backBuffer.getWidth(null) != width
+        || backBuffer.getHeight(null) != height) {
+      backBuffer = createImage(width, height);
+      if (backBuffer == null) {
+        // Not displayable yet
+        return;
+      }
+    }
+    Graphics g = backBuffer.getGraphics();
     FontMetrics fm = g.getFontMetrics();
 
-    int width = getBounds().width;
     int bottom = ctrlButtons.getBounds().y - fm.getHeight() - 2;
 
     int drawableWidth = width - 10;
     int drawableHeight = bottom - 10;
 
+    g.setColor(getBackground());
+    g.fillRect(0, 0, width, height);
     g.setColor(Color.black);
     g.fillRect(0, 0, width, bottom);
 
-    if(started && simulation != null) {
-      City[] cities = simulation.getCities();
-      Chromosome[] chromosomes = simulation.getChromosomes();
-
-      if (cities == null || chromosomes == null) {
-        return;
-      }
+    String status = this.status;
+    TourSnapshot tour = simulation != null ? simulation.getBestTour() : null;
+    if (started && tour != null) {
+      City[] cities = tour.getCities();
 
       g.setColor(Color.red);
       for (int i = 0; i < cities.length; i++) {
@@ -192,10 +299,9 @@ public class TravelingSalesman extends Applet implements Simulation.Listener {
 
       g.setColor(Color.white);
       for (int i = 0; i < cities.length; i++) {
-        Chromosome chromosome = chromosomes[0];
-        int icity = chromosome.getCity(i);
+        int icity = tour.getCity(i);
         if (i != 0) {
-          int last = chromosome.getCity(i - 1);
+          int last = tour.getCity(i - 1);
           g.drawLine(
               cities[icity].getProjectedX(drawableWidth),
               cities[icity].getProjectedY(drawableHeight),
@@ -207,20 +313,21 @@ public class TravelingSalesman extends Applet implements Simulation.Listener {
     }
 
     g.drawString(status, 0, bottom);
-
-    getGraphics().drawImage(img, 0, 0, this);
+    g.dispose();
+
+    drawnTour = tour;
+    drawnStatus = status;
+    Graphics screen = getGraphics();
+    if (screen != null) {
+      screen.drawImage(backBuffer, 0, 0, this);
+      screen.dispose();
+    }
   }
 
   @Override
-  public void onUpdate(final String status) {
-    // Invoke on the UI thread
-    SwingUtilities.invokeLater(new Runnable() {
-      @Override
-      public void run() {
-        TravelingSalesman.this.status = status;
-        update();
-      }
-    });
+  public void onUpdate(String status) {
+    // Picked up by the frame timer on the UI thread
+    this.status = status;
   }
 
   @Override